@@ -0,0 +1,302 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Demonstrates a multi-channel buffer that adapts its batch size and number of channels to the observed sink latency.
+ * <p>
+ * {@code MultiChannelDemo} uses a fixed buffer size of 5 and two channels. That is only the right configuration for a
+ * 500ms network latency and a record produced every 50ms. When the latency drifts, a fixed configuration either blocks
+ * the producer (the batches are too small to cover the latency) or lets records wait longer than they need to (the
+ * batches are bigger than necessary).
+ * <p>
+ * The adaptive buffer measures the flush round-trip time and the producer rate and sizes the batches so that the
+ * producer fills a batch in about the time it takes the other in-flight channels to finish flushing. On top of that, it
+ * adjusts the number of channels with AIMD (additive increase, multiplicative decrease): it adds a channel whenever the
+ * producer had to block, and it cuts the channel count when channels are consistently sitting idle.
+ * <p>
+ * The simulated database in this demo drifts between fast and slow phases, and it gets slower as more flushes are in
+ * flight at once, so extra channels are not free.
+ */
+public class AdaptiveChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 200;
+    private static final Duration RECORD_PROCESSING_TIME = Duration.ofMillis(50);
+    private static final int INITIAL_BUFFER_SIZE = 5;
+    private static final int INITIAL_CHANNELS = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Adaptive Multi-Channel Buffered Write Demo ===");
+        log.info("Total records: %d, Record processing time: %dms, Initial buffer size: %d, Initial channels: %d".formatted(
+                TOTAL_RECORDS, RECORD_PROCESSING_TIME.toMillis(), INITIAL_BUFFER_SIZE, INITIAL_CHANNELS));
+        log.info("");
+
+        log.info("--- Fixed configuration ---");
+        var fixed = run(false);
+        log.info("");
+        log.info("--- Adaptive configuration ---");
+        var adaptive = run(true);
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%-8s | %12s | %12s | %8s | %10s".formatted("mode", "total time", "stall time", "flushes", "avg batch"));
+        log.info(fixed.format("fixed"));
+        log.info(adaptive.format("adaptive"));
+    }
+
+    private static Result run(boolean adaptive) throws InterruptedException {
+        var database = new DriftingDatabase();
+        var buffer = new AdaptiveMultiChannelBuffer(INITIAL_CHANNELS, INITIAL_BUFFER_SIZE, adaptive, database);
+
+        Instant start = Instant.now();
+        for (int i = 1; i <= TOTAL_RECORDS; i++) {
+            Thread.sleep(RECORD_PROCESSING_TIME);
+            buffer.write("record-" + i);
+        }
+        buffer.close();
+        Duration elapsed = Duration.between(start, Instant.now());
+
+        return new Result(elapsed, buffer.totalStallTime(), database.totalFlushOperations(),
+                (double) database.totalRecordsWritten() / database.totalFlushOperations());
+    }
+
+    record Result(Duration elapsed, Duration stallTime, int flushes, double averageBatchSize) {
+        String format(String mode) {
+            return "%-8s | %10dms | %10dms | %8d | %10.1f".formatted(
+                    mode, elapsed.toMillis(), stallTime.toMillis(), flushes, averageBatchSize);
+        }
+    }
+
+    /**
+     * A simulated database whose latency drifts over time. The latency follows a schedule of phases (measured from
+     * when the database is created), and every additional concurrent flush adds a congestion penalty.
+     */
+    static class DriftingDatabase {
+        private static final Duration[] PHASE_LATENCIES = {
+                Duration.ofMillis(500), Duration.ofMillis(1_500), Duration.ofMillis(150), Duration.ofMillis(800)};
+        private static final Duration PHASE_LENGTH = Duration.ofMillis(1_500);
+        private static final double CONGESTION_PENALTY = 0.15;
+
+        private final long createdNanos = System.nanoTime();
+        private int inFlight = 0;
+        private int totalRecordsWritten = 0;
+        private int totalFlushOperations = 0;
+
+        void write(List<String> records) throws InterruptedException {
+            Duration latency;
+            synchronized (this) {
+                inFlight++;
+                long elapsed = System.nanoTime() - createdNanos;
+                int phase = (int) ((elapsed / PHASE_LENGTH.toNanos()) % PHASE_LATENCIES.length);
+                long penaltyPercent = Math.round(CONGESTION_PENALTY * 100 * (inFlight - 1));
+                latency = PHASE_LATENCIES[phase].multipliedBy(100 + penaltyPercent).dividedBy(100);
+            }
+            try {
+                Thread.sleep(latency);
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                    totalRecordsWritten += records.size();
+                    totalFlushOperations++;
+                }
+            }
+        }
+
+        synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+        synchronized int totalFlushOperations() { return totalFlushOperations; }
+    }
+
+    /**
+     * A multi-channel buffer that can tune its own batch size and channel count.
+     * <p>
+     * All the measuring and tuning happens on the producer side, under the buffer's monitor, at the moment a channel
+     * switch happens. The flush tasks only report how long they took (the result of their future) so that they never
+     * need the monitor, which a producer may be holding while it waits for a flush.
+     */
+    static class AdaptiveMultiChannelBuffer {
+        private static final int MIN_CHANNELS = 2;
+        private static final int MAX_CHANNELS = 8;
+        private static final int MIN_BATCH = 1;
+        private static final int MAX_BATCH = 50;
+        private static final double HEADROOM = 1.25;
+        private static final double SMOOTHING = 0.3;
+        private static final int IDLE_SWITCHES_BEFORE_DECREASE = 4;
+
+        private final boolean adaptive;
+        private final DriftingDatabase database;
+        private final ExecutorService flushExecutor;
+        private final Channel[] channels;
+        private int activeChannels;
+        private int bufferCapacity;
+        private int activeChannelIndex = 0;
+        private long activeSinceNanos = System.nanoTime();
+        private boolean closed = false;
+
+        private double flushRttNanos = Double.NaN;
+        private double recordsPerNano = Double.NaN;
+        private int consecutiveIdleSwitches = 0;
+        private long totalStallNanos = 0;
+        private static final Logger log = Logger.getAnonymousLogger();
+
+        AdaptiveMultiChannelBuffer(int numChannels, int bufferCapacity, boolean adaptive, DriftingDatabase database) {
+            this.activeChannels = numChannels;
+            this.bufferCapacity = bufferCapacity;
+            this.adaptive = adaptive;
+            this.database = database;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.channels = new Channel[MAX_CHANNELS];
+            for (int i = 0; i < MAX_CHANNELS; i++) {
+                channels[i] = new Channel(i);
+            }
+        }
+
+        synchronized void write(String record) throws InterruptedException {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+
+            Channel active = channels[activeChannelIndex];
+            active.buffer.add(record);
+            if (active.buffer.size() < bufferCapacity) {
+                return;
+            }
+
+            List<String> toFlush = new ArrayList<>(active.buffer);
+            active.buffer.clear();
+            active.pendingFlush = flushExecutor.submit(() -> {
+                long start = System.nanoTime();
+                database.write(toFlush);
+                return System.nanoTime() - start;
+            });
+            observeProducerRate(toFlush.size());
+
+            // Harvest the round-trip times of the flushes that have finished since the last switch.
+            int idleChannels = 0;
+            for (int i = 0; i < channels.length; i++) {
+                Channel channel = channels[i];
+                if (channel.pendingFlush != null && channel.pendingFlush.isDone()) {
+                    observeFlushRtt(await(channel.pendingFlush));
+                    channel.pendingFlush = null;
+                }
+                if (i < activeChannels && channel.pendingFlush == null) {
+                    idleChannels++;
+                }
+            }
+
+            int nextChannel = (activeChannelIndex + 1) % activeChannels;
+            Channel next = channels[nextChannel];
+            boolean stalled = next.pendingFlush != null;
+            if (stalled) {
+                long stallStart = System.nanoTime();
+                observeFlushRtt(await(next.pendingFlush));
+                next.pendingFlush = null;
+                totalStallNanos += System.nanoTime() - stallStart;
+            }
+
+            if (adaptive) {
+                adapt(stalled, idleChannels);
+            }
+            activeChannelIndex = nextChannel;
+            activeSinceNanos = System.nanoTime();
+        }
+
+        /**
+         * Adjust the channel count with AIMD and then size the batches to fit the measured round-trip time.
+         * <p>
+         * While one channel fills, the other {@code channels - 1} are flushing. For the producer to never block, filling
+         * a batch must take at least as long as a flush, spread across those channels:
+         * {@code batch / rate >= rtt / (channels - 1)}.
+         */
+        private void adapt(boolean stalled, int idleChannels) {
+            int previousChannels = activeChannels;
+            int previousCapacity = bufferCapacity;
+
+            if (stalled) {
+                activeChannels = Math.min(MAX_CHANNELS, activeChannels + 1);
+                consecutiveIdleSwitches = 0;
+            } else if (idleChannels > 1) {
+                // More than just the next channel was idle, so a channel is going unused.
+                if (++consecutiveIdleSwitches >= IDLE_SWITCHES_BEFORE_DECREASE) {
+                    activeChannels = Math.max(MIN_CHANNELS, activeChannels * 3 / 4);
+                    consecutiveIdleSwitches = 0;
+                }
+            } else {
+                consecutiveIdleSwitches = 0;
+            }
+
+            if (!Double.isNaN(flushRttNanos) && !Double.isNaN(recordsPerNano)) {
+                double ideal = HEADROOM * recordsPerNano * flushRttNanos / (activeChannels - 1);
+                bufferCapacity = (int) Math.max(MIN_BATCH, Math.min(MAX_BATCH, Math.ceil(ideal)));
+            }
+
+            if (activeChannels != previousChannels || bufferCapacity != previousCapacity) {
+                log.info("Adapted: channels %d -> %d, batch size %d -> %d (flush RTT %.0fms, producer rate %.0f records/s%s)".formatted(
+                        previousChannels, activeChannels, previousCapacity, bufferCapacity,
+                        flushRttNanos / 1_000_000, recordsPerNano * 1_000_000_000, stalled ? ", producer blocked" : ""));
+            }
+        }
+
+        private void observeFlushRtt(long nanos) {
+            flushRttNanos = Double.isNaN(flushRttNanos) ? nanos : SMOOTHING * nanos + (1 - SMOOTHING) * flushRttNanos;
+        }
+
+        private void observeProducerRate(int records) {
+            long fillNanos = Math.max(1, System.nanoTime() - activeSinceNanos);
+            double rate = (double) records / fillNanos;
+            recordsPerNano = Double.isNaN(recordsPerNano) ? rate : SMOOTHING * rate + (1 - SMOOTHING) * recordsPerNano;
+        }
+
+        synchronized Duration totalStallTime() {
+            return Duration.ofNanos(totalStallNanos);
+        }
+
+        synchronized void close() throws InterruptedException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            Channel active = channels[activeChannelIndex];
+            if (!active.buffer.isEmpty()) {
+                database.write(new ArrayList<>(active.buffer));
+                active.buffer.clear();
+            }
+
+            // Channels beyond the active count may still be flushing if the channel count was decreased.
+            for (Channel channel : channels) {
+                if (channel.pendingFlush != null) {
+                    await(channel.pendingFlush);
+                }
+            }
+
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static long await(Future<Long> pendingFlush) throws InterruptedException {
+            try {
+                return pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+        }
+
+        static class Channel {
+            final int id;
+            final List<String> buffer = new ArrayList<>();
+            Future<Long> pendingFlush = null;
+
+            Channel(int id) {
+                this.id = id;
+            }
+        }
+    }
+}
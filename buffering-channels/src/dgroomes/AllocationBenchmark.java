@@ -0,0 +1,296 @@
+package dgroomes;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Measures how much garbage the multi-channel buffer creates per record, comparing a buffer that copies each batch on
+ * flush against one that swaps in a recycled buffer from a pool.
+ * <p>
+ * The copying buffer allocates a new list (and its backing array) for every flush. On top of that, the demos build every
+ * record as a fresh {@code "record-" + i} String. This benchmark measures both effects: each buffer is driven once with
+ * freshly built records and once with records that were built ahead of time and are reused.
+ * <p>
+ * Allocation is measured with the JDK's per-thread allocation counters
+ * ({@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}). This is the same technique that JMH's "gc"
+ * profiler uses. The flushes run on a fixed pool of platform threads, rather than virtual threads, so that their
+ * allocations can be counted too. The garbage collector MXBeans report how many collections happened and how long they
+ * took.
+ */
+public class AllocationBenchmark {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 5_000_000;
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 1_000;
+    private static final int DISTINCT_RECORDS = 10_000;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Buffer Allocation Benchmark ===");
+        log.info("Total records per run: %,d, Channels: %d, Buffer size: %,d".formatted(
+                TOTAL_RECORDS, NUM_CHANNELS, BUFFER_SIZE));
+        log.info("");
+
+        var prebuilt = new String[DISTINCT_RECORDS];
+        for (int i = 0; i < DISTINCT_RECORDS; i++) {
+            prebuilt[i] = "record-" + i;
+        }
+
+        log.info("Warming up...");
+        for (int i = 0; i < 3; i++) {
+            run(CopyingMultiChannelBuffer::new, true, prebuilt);
+            run(RecyclingMultiChannelBuffer::new, true, prebuilt);
+        }
+
+        var results = new ArrayList<String>();
+        for (boolean freshRecords : new boolean[]{true, false}) {
+            results.add(run(CopyingMultiChannelBuffer::new, freshRecords, prebuilt).format("copying", freshRecords));
+            results.add(run(RecyclingMultiChannelBuffer::new, freshRecords, prebuilt).format("recycling", freshRecords));
+        }
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%-10s | %-8s | %14s | %14s | %8s | %10s | %14s".formatted(
+                "buffer", "records", "write B/rec", "total B/rec", "GCs", "GC time", "rec/s"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("'write B/rec' is allocation on the producer thread. 'total B/rec' includes the flush threads.");
+    }
+
+    private static Result run(BufferFactory factory, boolean freshRecords, String[] prebuilt) throws Exception {
+        var database = new SimulatedDatabase();
+        var buffer = factory.create(NUM_CHANNELS, BUFFER_SIZE, database);
+        long producerThreadId = Thread.currentThread().threadId();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long totalBytesBefore = allocatedBytesOfAllThreads();
+        long producerBytesBefore = threads.getThreadAllocatedBytes(producerThreadId);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < TOTAL_RECORDS; i++) {
+            buffer.write(freshRecords ? "record-" + i : prebuilt[i % DISTINCT_RECORDS]);
+        }
+        buffer.close();
+
+        long elapsed = System.nanoTime() - start;
+        long producerBytes = threads.getThreadAllocatedBytes(producerThreadId) - producerBytesBefore;
+        long totalBytes = allocatedBytesOfAllThreads() - totalBytesBefore;
+        if (database.totalRecordsWritten() != TOTAL_RECORDS) {
+            throw new IllegalStateException("Expected %d records to be written but there were %d".formatted(
+                    TOTAL_RECORDS, database.totalRecordsWritten()));
+        }
+        return new Result(
+                (double) producerBytes / TOTAL_RECORDS,
+                (double) totalBytes / TOTAL_RECORDS,
+                gcCount() - gcCountBefore,
+                gcMillis() - gcMillisBefore,
+                TOTAL_RECORDS / (elapsed / 1_000_000_000.0));
+    }
+
+    record Result(double producerBytesPerRecord, double totalBytesPerRecord, long gcCount, long gcMillis,
+                  double recordsPerSecond) {
+        String format(String buffer, boolean freshRecords) {
+            return "%-10s | %-8s | %14.2f | %14.2f | %8d | %8dms | %,14.0f".formatted(
+                    buffer, freshRecords ? "fresh" : "prebuilt", producerBytesPerRecord, totalBytesPerRecord,
+                    gcCount, gcMillis, recordsPerSecond);
+        }
+    }
+
+    /**
+     * The allocated bytes of all live threads. The flush threads live for the whole benchmark, so they are counted.
+     */
+    private static long allocatedBytesOfAllThreads() {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+
+    @FunctionalInterface
+    interface BufferFactory {
+        RecordBuffer create(int numChannels, int bufferCapacity, SimulatedDatabase database);
+    }
+
+    interface RecordBuffer {
+        void write(String record) throws InterruptedException;
+
+        /**
+         * Flush the remaining records and wait for all flushes to complete.
+         */
+        void close() throws InterruptedException;
+    }
+
+    /**
+     * An instantaneous database that only counts what it receives.
+     */
+    static class SimulatedDatabase {
+        private long totalRecordsWritten = 0;
+
+        synchronized void write(List<String> records) {
+            totalRecordsWritten += records.size();
+        }
+
+        synchronized long totalRecordsWritten() { return totalRecordsWritten; }
+    }
+
+    /**
+     * The flush threads are shared across runs so that their allocation counters survive from one run to the next.
+     */
+    private static final ExecutorService flushExecutor = Executors.newFixedThreadPool(NUM_CHANNELS, runnable -> {
+        var thread = new Thread(runnable, "flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The original flush strategy: copy the channel's buffer into a new list, clear the buffer, and flush the copy.
+     */
+    static class CopyingMultiChannelBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final List<List<String>> buffers = new ArrayList<>();
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private int activeChannelIndex = 0;
+
+        CopyingMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            for (int i = 0; i < numChannels; i++) {
+                buffers.add(new ArrayList<>());
+                pendingFlushes.add(null);
+            }
+        }
+
+        @Override
+        public synchronized void write(String record) throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            active.add(record);
+            if (active.size() < bufferCapacity) {
+                return;
+            }
+
+            List<String> toFlush = new ArrayList<>(active);
+            active.clear();
+            pendingFlushes.set(activeChannelIndex, flushExecutor.submit(() -> {
+                database.write(toFlush);
+                return null;
+            }));
+
+            int nextChannel = (activeChannelIndex + 1) % buffers.size();
+            await(pendingFlushes.get(nextChannel));
+            pendingFlushes.set(nextChannel, null);
+            activeChannelIndex = nextChannel;
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            if (!active.isEmpty()) {
+                database.write(new ArrayList<>(active));
+                active.clear();
+            }
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+        }
+    }
+
+    /**
+     * The buffer-swap strategy: hand the filled buffer to the flush and swap in a spare buffer from a pool. The flush
+     * clears the buffer and returns it to the pool when it's done.
+     */
+    static class RecyclingMultiChannelBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final List<List<String>> buffers = new ArrayList<>();
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private final BlockingQueue<List<String>> spareBuffers;
+        private int activeChannelIndex = 0;
+
+        RecyclingMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.spareBuffers = new ArrayBlockingQueue<>(numChannels);
+            for (int i = 0; i < numChannels; i++) {
+                buffers.add(new ArrayList<>(bufferCapacity));
+                spareBuffers.add(new ArrayList<>(bufferCapacity));
+                pendingFlushes.add(null);
+            }
+        }
+
+        @Override
+        public synchronized void write(String record) throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            active.add(record);
+            if (active.size() < bufferCapacity) {
+                return;
+            }
+
+            buffers.set(activeChannelIndex, spareBuffers.remove());
+            pendingFlushes.set(activeChannelIndex, flushExecutor.submit(() -> {
+                database.write(active);
+                active.clear();
+                spareBuffers.add(active);
+                return null;
+            }));
+
+            int nextChannel = (activeChannelIndex + 1) % buffers.size();
+            await(pendingFlushes.get(nextChannel));
+            pendingFlushes.set(nextChannel, null);
+            activeChannelIndex = nextChannel;
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            if (!active.isEmpty()) {
+                database.write(active);
+                active.clear();
+            }
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+        }
+    }
+
+    private static void await(Future<Void> pendingFlush) throws InterruptedException {
+        if (pendingFlush == null) {
+            return;
+        }
+        try {
+            pendingFlush.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Flush failed", e);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Demonstrates a non-blocking multi-channel buffer: {@code write} returns a {@link CompletableFuture} that completes when
+ * the batch containing the record has been flushed.
+ * <p>
+ * {@code MultiChannelBuffer.write} blocks the caller when the next channel is still flushing, and it gives the caller
+ * no signal for when a record is actually durable. The async buffer never blocks. When all channels are busy, a full
+ * batch waits in a queue until a channel frees up. That queue is unbounded, so the async buffer pairs with a
+ * {@link Flow.Subscriber} adapter for backpressure. The subscriber only requests as many records from its upstream
+ * publisher as it has room for, and it requests more as records are flushed. A well-behaved publisher then just stops
+ * producing until there is demand, instead of blocking a thread.
+ */
+public class AsyncChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 20;
+    private static final int PUBLISHED_RECORDS = 100;
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 5;
+    private static final Duration NETWORK_LATENCY = Duration.ofMillis(500);
+    private static final Duration RECORD_PROCESSING_TIME = Duration.ofMillis(50);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Async Multi-Channel Buffered Write Demo ===");
+        log.info("Channels: %d, Buffer size: %d, Network latency: %dms".formatted(
+                NUM_CHANNELS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("");
+
+        writeWithFutures();
+        log.info("");
+        writeWithFlow();
+    }
+
+    /**
+     * Write records directly and attach a callback to each record's future.
+     */
+    private static void writeWithFutures() throws InterruptedException {
+        log.info("--- Part 1: write() returns a future ---");
+        var database = new SimulatedDatabase(NETWORK_LATENCY);
+        var buffer = new AsyncMultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, database);
+
+        Instant start = Instant.now();
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 1; i <= TOTAL_RECORDS; i++) {
+            Thread.sleep(RECORD_PROCESSING_TIME);
+            String record = "record-" + i;
+            var flushed = buffer.write(record);
+            flushed.thenRun(() -> log.info("%s is durable".formatted(record)));
+            futures.add(flushed);
+        }
+        Duration producerTime = Duration.between(start, Instant.now());
+        buffer.close().join();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        Duration totalTime = Duration.between(start, Instant.now());
+
+        log.info("=== Results (futures) ===");
+        log.info("Total records written: %d".formatted(database.totalRecordsWritten()));
+        log.info("Time the producer spent producing and writing: %s (it never blocked on a flush)".formatted(producerTime));
+        log.info("Time until every record was durable: %s".formatted(totalTime));
+    }
+
+    /**
+     * Connect a demand-driven publisher to the buffer through the subscriber adapter.
+     */
+    private static void writeWithFlow() {
+        log.info("--- Part 2: Flow.Subscriber adapter with demand-based backpressure ---");
+        var database = new SimulatedDatabase(NETWORK_LATENCY);
+        var buffer = new AsyncMultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, database);
+        var publisher = new RecordPublisher(PUBLISHED_RECORDS);
+        int window = BUFFER_SIZE * (NUM_CHANNELS + 1);
+        var subscriber = new BufferSubscriber(buffer, window);
+
+        Instant start = Instant.now();
+        publisher.subscribe(subscriber);
+        subscriber.done().join();
+        Duration totalTime = Duration.between(start, Instant.now());
+
+        log.info("=== Results (Flow) ===");
+        log.info("Total records written: %d".formatted(database.totalRecordsWritten()));
+        log.info("Subscriber demand window: %d records".formatted(window));
+        log.info("Peak records buffered or in flight: %d".formatted(buffer.peakOutstandingRecords()));
+        log.info("Times the publisher ran out of demand and stopped producing: %d".formatted(publisher.demandExhaustions()));
+        log.info("Total execution time: %s".formatted(totalTime));
+    }
+
+    static class SimulatedDatabase {
+        private final Duration latency;
+        private int totalRecordsWritten = 0;
+        private static final Logger log = Logger.getAnonymousLogger();
+
+        SimulatedDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        void write(List<String> records) throws InterruptedException {
+            log.info("  [DB] Flushing %d records over the network...".formatted(records.size()));
+            Thread.sleep(latency);
+            synchronized (this) {
+                totalRecordsWritten += records.size();
+            }
+        }
+
+        synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+    }
+
+    /**
+     * A multi-channel buffer whose methods never block.
+     * <p>
+     * A channel here is a slot for an in-flight flush. When the active batch fills up, it is sealed. If fewer than
+     * {@code numChannels} flushes are in flight, the sealed batch starts flushing right away. Otherwise, it waits in a
+     * queue, and it starts flushing when an earlier flush completes.
+     * <p>
+     * The completion handlers of the flushes take the buffer's monitor. That's safe because nothing ever waits while
+     * holding the monitor.
+     */
+    static class AsyncMultiChannelBuffer {
+        private final int numChannels;
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final ExecutorService flushExecutor;
+        private final ArrayDeque<Batch> sealed = new ArrayDeque<>();
+        private final CompletableFuture<Void> allFlushed = new CompletableFuture<>();
+        private Batch active;
+        private int inFlight = 0;
+        private int outstandingRecords = 0;
+        private int peakOutstandingRecords = 0;
+        private boolean closed = false;
+
+        AsyncMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+            this.numChannels = numChannels;
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.active = new Batch(bufferCapacity);
+        }
+
+        /**
+         * Add a record to the buffer without blocking.
+         *
+         * @return a future that completes when the batch containing the record has been flushed. It is a copy of the
+         * batch's future, so a caller that completes or cancels it doesn't affect the other records in the batch.
+         */
+        synchronized CompletableFuture<Void> write(String record) {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+
+            Batch batch = active;
+            batch.records.add(record);
+            outstandingRecords++;
+            peakOutstandingRecords = Math.max(peakOutstandingRecords, outstandingRecords);
+            if (batch.records.size() >= bufferCapacity) {
+                seal();
+            }
+            return batch.flushed.copy();
+        }
+
+        private void seal() {
+            sealed.addLast(active);
+            active = new Batch(bufferCapacity);
+            startFlushes();
+        }
+
+        /**
+         * Start flushing sealed batches while there are free channels.
+         */
+        private void startFlushes() {
+            while (inFlight < numChannels && !sealed.isEmpty()) {
+                Batch batch = sealed.removeFirst();
+                inFlight++;
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        database.write(batch.records);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, flushExecutor).whenComplete((result, error) -> flushCompleted(batch, error));
+            }
+        }
+
+        private void flushCompleted(Batch batch, Throwable error) {
+            synchronized (this) {
+                inFlight--;
+                outstandingRecords -= batch.records.size();
+                startFlushes();
+                if (closed && inFlight == 0 && sealed.isEmpty()) {
+                    flushExecutor.shutdown();
+                    allFlushed.complete(null);
+                }
+            }
+
+            // Complete the batch's future outside the monitor because its callbacks run on this thread.
+            if (error == null) {
+                batch.flushed.complete(null);
+            } else {
+                batch.flushed.completeExceptionally(error);
+            }
+        }
+
+        synchronized int peakOutstandingRecords() { return peakOutstandingRecords; }
+
+        /**
+         * Seal the partially filled active batch, if there is one, and stop accepting writes.
+         *
+         * @return a future that completes when every batch has been flushed
+         */
+        synchronized CompletableFuture<Void> close() {
+            if (!closed) {
+                closed = true;
+                if (!active.records.isEmpty()) {
+                    seal();
+                }
+                if (inFlight == 0 && sealed.isEmpty()) {
+                    flushExecutor.shutdown();
+                    allFlushed.complete(null);
+                }
+            }
+            return allFlushed.copy();
+        }
+
+        static class Batch {
+            final List<String> records;
+            final CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+            Batch(int capacity) {
+                this.records = new ArrayList<>(capacity);
+            }
+        }
+    }
+
+    /**
+     * Adapts the async buffer to the {@link Flow.Subscriber} interface.
+     * <p>
+     * The subscriber requests a fixed window of records up front. Every time a record is flushed, it requests one more.
+     * So there are never more than {@code window} records buffered or in flight, and the upstream publisher is told
+     * exactly how much it may send.
+     */
+    static class BufferSubscriber implements Flow.Subscriber<String> {
+        private final AsyncMultiChannelBuffer buffer;
+        private final int window;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        BufferSubscriber(AsyncMultiChannelBuffer buffer, int window) {
+            this.buffer = buffer;
+            this.window = window;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(window);
+        }
+
+        @Override
+        public void onNext(String record) {
+            buffer.write(record).whenComplete((result, error) -> {
+                if (error == null) {
+                    subscription.request(1);
+                } else {
+                    subscription.cancel();
+                    done.completeExceptionally(error);
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            buffer.close();
+            done.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            buffer.close().whenComplete((result, error) -> {
+                if (error == null) {
+                    done.complete(null);
+                } else {
+                    done.completeExceptionally(error);
+                }
+            });
+        }
+
+        /**
+         * A future that completes when the publisher has completed and every record has been flushed.
+         */
+        CompletableFuture<Void> done() { return done; }
+    }
+
+    /**
+     * A publisher that produces records only when there is outstanding demand. It doesn't block when demand runs out.
+     * It just stops, and the next {@code request} call starts it again.
+     * <p>
+     * Signals to the subscriber are serialized with the usual "work in progress" counter: only the caller that moves the
+     * counter from zero runs the drain loop, and the loop keeps going until nobody else has asked for another pass.
+     */
+    static class RecordPublisher implements Flow.Publisher<String> {
+        private final int totalRecords;
+        private final Executor executor = Executors.newVirtualThreadPerTaskExecutor();
+        private final AtomicLong demandExhaustions = new AtomicLong();
+
+        RecordPublisher(int totalRecords) {
+            this.totalRecords = totalRecords;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super String> subscriber) {
+            subscriber.onSubscribe(new RecordSubscription(subscriber));
+        }
+
+        long demandExhaustions() { return demandExhaustions.get(); }
+
+        class RecordSubscription implements Flow.Subscription {
+            private final Flow.Subscriber<? super String> subscriber;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger workInProgress = new AtomicInteger();
+            private volatile boolean cancelled = false;
+            private int next = 1;
+
+            RecordSubscription(Flow.Subscriber<? super String> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Demand must be positive but was " + n));
+                    return;
+                }
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                if (workInProgress.getAndIncrement() == 0) {
+                    executor.execute(this::drain);
+                }
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+
+            private void drain() {
+                int missed = 1;
+                do {
+                    while (!cancelled && next <= totalRecords && demand.get() > 0) {
+                        try {
+                            Thread.sleep(RECORD_PROCESSING_TIME.dividedBy(10));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        subscriber.onNext("record-" + next++);
+                        demand.decrementAndGet();
+                    }
+                    if (!cancelled && next > totalRecords) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    } else if (!cancelled && demand.get() == 0) {
+                        demandExhaustions.incrementAndGet();
+                    }
+                    missed = workInProgress.addAndGet(-missed);
+                } while (missed != 0);
+            }
+        }
+    }
+}
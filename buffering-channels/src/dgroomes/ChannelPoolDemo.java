@@ -0,0 +1,275 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Compares strict round-robin channel selection against a pool of channels where the writer takes whichever channel is
+ * free first.
+ * <p>
+ * {@code MultiChannelDemo} always advances to the next channel in order and waits for that channel's flush, even if some
+ * other channel has already finished flushing. With more than two channels and a sink whose latency jitters, that
+ * causes needless stalls: one slow flush holds up the writer while faster flushes have already freed up their channels.
+ * <p>
+ * The pooled buffer keeps its free channels in a queue. A channel goes back into the queue as soon as its flush
+ * completes, so the writer picks up whichever channel frees up first. A semaphore bounds how many flushes can be
+ * outstanding at once (the in-flight window), independently of how many channels there are.
+ * <p>
+ * The demo runs the pooled buffer with every window from one flush up to one less than the number of channels. A
+ * window smaller than that leaves channels idle, so the writer stalls on the window instead of on a free channel.
+ */
+public class ChannelPoolDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 300;
+    private static final int BUFFER_SIZE = 10;
+    private static final int[] CHANNEL_COUNTS = {3, 4, 6};
+    private static final Duration RECORD_PROCESSING_TIME = Duration.ofMillis(10);
+    private static final Duration MIN_LATENCY = Duration.ofMillis(50);
+    private static final Duration MAX_LATENCY = Duration.ofMillis(950);
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Round-Robin vs. Channel Pool Demo ===");
+        log.info("Total records: %d, Buffer size: %d, Record processing time: %dms, Network latency: %d-%dms (jittery)".formatted(
+                TOTAL_RECORDS, BUFFER_SIZE, RECORD_PROCESSING_TIME.toMillis(), MIN_LATENCY.toMillis(), MAX_LATENCY.toMillis()));
+        log.info("The channel pool runs with every in-flight window from 1 to one less than the number of channels.");
+        log.info("");
+
+        var results = new ArrayList<String>();
+        for (int channels : CHANNEL_COUNTS) {
+            log.info("Running with %d channels...".formatted(channels));
+            var roundRobinDatabase = new JitteryDatabase();
+            var roundRobin = run(new RoundRobinBuffer(channels, BUFFER_SIZE, roundRobinDatabase), roundRobinDatabase);
+            results.add("%8d | %-11s | %6s | %10dms | %10dms".formatted(channels, "round-robin", "-",
+                    roundRobin.elapsed().toMillis(), roundRobin.stallTime().toMillis()));
+            for (int maxInFlight = 1; maxInFlight < channels; maxInFlight++) {
+                var poolDatabase = new JitteryDatabase();
+                var pool = run(new ChannelPoolBuffer(channels, BUFFER_SIZE, maxInFlight, poolDatabase), poolDatabase);
+                results.add("%8d | %-11s | %6d | %10dms | %10dms".formatted(channels, "pool", maxInFlight,
+                        pool.elapsed().toMillis(), pool.stallTime().toMillis()));
+            }
+        }
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%8s | %-11s | %6s | %12s | %12s".formatted("channels", "buffer", "window", "total", "stall"));
+        for (String result : results) {
+            log.info(result);
+        }
+    }
+
+    private static Result run(RecordBuffer buffer, JitteryDatabase database) throws InterruptedException {
+        Instant start = Instant.now();
+        for (int i = 1; i <= TOTAL_RECORDS; i++) {
+            Thread.sleep(RECORD_PROCESSING_TIME);
+            buffer.write("record-" + i);
+        }
+        buffer.close();
+        if (database.totalRecordsWritten() != TOTAL_RECORDS) {
+            throw new IllegalStateException("Records were lost");
+        }
+        return new Result(Duration.between(start, Instant.now()), buffer.totalStallTime());
+    }
+
+    record Result(Duration elapsed, Duration stallTime) {}
+
+    interface RecordBuffer {
+        void write(String record) throws InterruptedException;
+
+        Duration totalStallTime();
+
+        void close() throws InterruptedException;
+    }
+
+    /**
+     * A simulated database whose latency is random (but reproducible) on every flush.
+     */
+    static class JitteryDatabase {
+        private final Random random = new Random(SEED);
+        private int totalRecordsWritten = 0;
+
+        void write(List<String> records) throws InterruptedException {
+            long latencyMillis;
+            synchronized (this) {
+                latencyMillis = random.nextLong(MIN_LATENCY.toMillis(), MAX_LATENCY.toMillis() + 1);
+            }
+            Thread.sleep(latencyMillis);
+            synchronized (this) {
+                totalRecordsWritten += records.size();
+            }
+        }
+
+        synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+    }
+
+    static class Channel {
+        final List<String> buffer = new ArrayList<>();
+        Future<Void> pendingFlush = null;
+    }
+
+    /**
+     * The strict round-robin approach from {@code MultiChannelDemo}. A channel's buffer is handed to the flush as-is,
+     * and the channel is not written to again until its flush completes.
+     */
+    static class RoundRobinBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final JitteryDatabase database;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final Channel[] channels;
+        private int activeChannelIndex = 0;
+        private long totalStallNanos = 0;
+
+        RoundRobinBuffer(int numChannels, int bufferCapacity, JitteryDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.channels = new Channel[numChannels];
+            for (int i = 0; i < numChannels; i++) {
+                channels[i] = new Channel();
+            }
+        }
+
+        @Override
+        public synchronized void write(String record) throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            active.buffer.add(record);
+            if (active.buffer.size() < bufferCapacity) {
+                return;
+            }
+
+            active.pendingFlush = flushExecutor.submit(() -> {
+                database.write(active.buffer);
+                active.buffer.clear();
+                return null;
+            });
+
+            int nextChannel = (activeChannelIndex + 1) % channels.length;
+            Channel next = channels[nextChannel];
+            if (next.pendingFlush != null) {
+                long stallStart = System.nanoTime();
+                await(next.pendingFlush);
+                totalStallNanos += System.nanoTime() - stallStart;
+                next.pendingFlush = null;
+            }
+            activeChannelIndex = nextChannel;
+        }
+
+        @Override
+        public synchronized Duration totalStallTime() {
+            return Duration.ofNanos(totalStallNanos);
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            if (!active.buffer.isEmpty()) {
+                database.write(active.buffer);
+                active.buffer.clear();
+            }
+            for (Channel channel : channels) {
+                if (channel.pendingFlush != null) {
+                    await(channel.pendingFlush);
+                }
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * A buffer that draws its channels from a pool. When the active channel fills up, it is flushed and the writer takes
+     * whichever channel is free first. A flushed channel returns itself to the pool when its flush completes.
+     * <p>
+     * The writer can block in two places: waiting for room in the in-flight window before it starts a flush, and waiting
+     * for a free channel. Both count as stall time.
+     */
+    static class ChannelPoolBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final JitteryDatabase database;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final BlockingQueue<Channel> freeChannels;
+        private final Semaphore inFlightWindow;
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private Channel active;
+        private long totalStallNanos = 0;
+        private static final Logger log = Logger.getAnonymousLogger();
+
+        ChannelPoolBuffer(int numChannels, int bufferCapacity, int maxInFlight, JitteryDatabase database) {
+            if (maxInFlight < 1 || maxInFlight >= numChannels) {
+                throw new IllegalArgumentException("The in-flight window must be between 1 and the number of channels minus one");
+            }
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.inFlightWindow = new Semaphore(maxInFlight);
+            this.freeChannels = new ArrayBlockingQueue<>(numChannels);
+            for (int i = 1; i < numChannels; i++) {
+                freeChannels.add(new Channel());
+            }
+            this.active = new Channel();
+        }
+
+        @Override
+        public synchronized void write(String record) throws InterruptedException {
+            active.buffer.add(record);
+            if (active.buffer.size() < bufferCapacity) {
+                return;
+            }
+
+            long stallStart = System.nanoTime();
+            inFlightWindow.acquire();
+            Channel full = active;
+            pendingFlushes.removeIf(Future::isDone);
+            pendingFlushes.add(flushExecutor.submit(() -> {
+                try {
+                    database.write(full.buffer);
+                    full.buffer.clear();
+                } finally {
+                    inFlightWindow.release();
+                    freeChannels.add(full);
+                }
+                return null;
+            }));
+
+            Channel next = freeChannels.poll();
+            if (next == null) {
+                log.fine("All channels are flushing, waiting for whichever finishes first... (BLOCKING)");
+                next = freeChannels.take();
+            }
+            totalStallNanos += System.nanoTime() - stallStart;
+            active = next;
+        }
+
+        @Override
+        public synchronized Duration totalStallTime() {
+            return Duration.ofNanos(totalStallNanos);
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            if (!active.buffer.isEmpty()) {
+                database.write(active.buffer);
+                active.buffer.clear();
+            }
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void await(Future<Void> pendingFlush) throws InterruptedException {
+        try {
+            pendingFlush.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Flush failed", e);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package dgroomes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Demonstrates a pre-flush stage that coalesces records by key and compresses each batch before it is sent.
+ * <p>
+ * The other demos send every record to the database as-is. When many records are updates to the same key, only the
+ * last one in a batch matters, and a batch of similar records compresses well. The pre-flush stage runs on the flush
+ * thread, off the write path. It can deduplicate the batch by key so that the last write wins, and it can compress the
+ * serialized batch with {@link Deflater}.
+ * <p>
+ * The simulated database charges for bytes: a flush takes a fixed round-trip latency plus the payload size divided by
+ * the bandwidth. The demo runs the same workload with each combination of the two options and compares the bytes sent
+ * and the time spent flushing.
+ */
+public class CoalescingChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 20_000;
+    private static final int NUM_KEYS = 500;
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 500;
+    private static final Duration ROUND_TRIP_LATENCY = Duration.ofMillis(20);
+    private static final int BANDWIDTH_BYTES_PER_SECOND = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Coalescing and Compression Demo ===");
+        log.info("Total records: %,d, Keys: %d, Channels: %d, Buffer size: %d".formatted(
+                TOTAL_RECORDS, NUM_KEYS, NUM_CHANNELS, BUFFER_SIZE));
+        log.info("Sink: %dms round trip + %,d bytes/s".formatted(
+                ROUND_TRIP_LATENCY.toMillis(), BANDWIDTH_BYTES_PER_SECOND));
+        log.info("");
+
+        List<KeyedRecord> records = generateRecords();
+
+        var results = new ArrayList<String>();
+        for (PreFlushStage stage : new PreFlushStage[]{
+                new PreFlushStage(false, false),
+                new PreFlushStage(true, false),
+                new PreFlushStage(false, true),
+                new PreFlushStage(true, true)}) {
+            var database = new BandwidthDatabase(ROUND_TRIP_LATENCY, BANDWIDTH_BYTES_PER_SECOND);
+            var buffer = new CoalescingMultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, stage, database);
+
+            long start = System.nanoTime();
+            for (KeyedRecord record : records) {
+                buffer.write(record);
+            }
+            buffer.close();
+            long elapsed = System.nanoTime() - start;
+
+            if (database.recordsReceived() != stage.recordsOut()) {
+                throw new IllegalStateException("The stage produced %d records but the database decoded %d".formatted(
+                        stage.recordsOut(), database.recordsReceived()));
+            }
+            results.add("%-8s | %-8s | %,11d | %,12d | %,11d | %10.2fs | %10.2fs | %11dms".formatted(
+                    stage.coalesce ? "yes" : "no", stage.compress ? "yes" : "no", stage.recordsOut(),
+                    stage.bytesIn(), database.bytesReceived(), database.sinkNanos() / 1e9, elapsed / 1e9,
+                    stage.stageNanos() / 1_000_000));
+        }
+
+        log.info("=== Results ===");
+        log.info("%-8s | %-8s | %11s | %12s | %11s | %11s | %11s | %13s".formatted(
+                "coalesce", "compress", "records out", "raw bytes", "bytes sent", "sink time", "total time",
+                "stage CPU"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("'raw bytes' is the serialized size of every buffered record. 'sink time' is the sum of all flush times.");
+    }
+
+    /**
+     * Generate updates for a set of keys where a few hot keys get most of the updates.
+     */
+    private static List<KeyedRecord> generateRecords() {
+        var random = new Random(42);
+        var records = new ArrayList<KeyedRecord>(TOTAL_RECORDS);
+        for (int i = 0; i < TOTAL_RECORDS; i++) {
+            // Squaring a uniform value skews the distribution towards the low keys.
+            double skewed = random.nextDouble() * random.nextDouble();
+            String key = "sensor-" + (int) (skewed * NUM_KEYS);
+            String value = "{\"sensor\":\"%s\",\"temperature\":%.1f,\"status\":\"OK\",\"sequence\":%d}".formatted(
+                    key, 15 + random.nextGaussian() * 3, i);
+            records.add(new KeyedRecord(key, value));
+        }
+        return records;
+    }
+
+    record KeyedRecord(String key, String value) {}
+
+    /**
+     * Turns a batch into the payload that is sent to the database. Optionally deduplicates by key, keeping the last
+     * write, and optionally compresses the newline-separated values.
+     */
+    static class PreFlushStage {
+        final boolean coalesce;
+        final boolean compress;
+        private long recordsOut = 0;
+        private long bytesIn = 0;
+        private long stageNanos = 0;
+
+        PreFlushStage(boolean coalesce, boolean compress) {
+            this.coalesce = coalesce;
+            this.compress = compress;
+        }
+
+        Payload prepare(List<KeyedRecord> batch) {
+            long start = System.nanoTime();
+            int rawBytes = 0;
+            for (KeyedRecord record : batch) {
+                rawBytes += record.value().getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+
+            List<KeyedRecord> toSend = batch;
+            if (coalesce) {
+                // Removing before putting moves a key to the position of its last write.
+                var latest = new LinkedHashMap<String, KeyedRecord>();
+                for (KeyedRecord record : batch) {
+                    latest.remove(record.key());
+                    latest.put(record.key(), record);
+                }
+                toSend = new ArrayList<>(latest.values());
+            }
+
+            var serialized = new StringBuilder();
+            for (KeyedRecord record : toSend) {
+                serialized.append(record.value()).append('\n');
+            }
+            byte[] bytes = serialized.toString().getBytes(StandardCharsets.UTF_8);
+            if (compress) {
+                bytes = deflate(bytes);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                recordsOut += toSend.size();
+                bytesIn += rawBytes;
+                stageNanos += elapsed;
+            }
+            return new Payload(bytes, compress);
+        }
+
+        private static byte[] deflate(byte[] bytes) {
+            var deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                var out = new ByteArrayOutputStream(bytes.length / 4);
+                var chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        synchronized long recordsOut() { return recordsOut; }
+        synchronized long bytesIn() { return bytesIn; }
+        synchronized long stageNanos() { return stageNanos; }
+    }
+
+    record Payload(byte[] bytes, boolean compressed) {}
+
+    /**
+     * A simulated database whose write time is a round-trip latency plus the time to transfer the payload. It decodes
+     * every payload and counts the records in it.
+     */
+    static class BandwidthDatabase {
+        private final Duration roundTripLatency;
+        private final int bytesPerSecond;
+        private long recordsReceived = 0;
+        private long bytesReceived = 0;
+        private long sinkNanos = 0;
+
+        BandwidthDatabase(Duration roundTripLatency, int bytesPerSecond) {
+            this.roundTripLatency = roundTripLatency;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void write(Payload payload) throws InterruptedException {
+            long start = System.nanoTime();
+            Thread.sleep(roundTripLatency.plusNanos(payload.bytes().length * 1_000_000_000L / bytesPerSecond));
+
+            byte[] bytes = payload.compressed() ? inflate(payload.bytes()) : payload.bytes();
+            String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+            synchronized (this) {
+                recordsReceived += lines.length;
+                bytesReceived += payload.bytes().length;
+                sinkNanos += System.nanoTime() - start;
+            }
+        }
+
+        private static byte[] inflate(byte[] bytes) {
+            var inflater = new Inflater();
+            try {
+                inflater.setInput(bytes);
+                var out = new ByteArrayOutputStream(bytes.length * 4);
+                var chunk = new byte[8192];
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(chunk);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        // Otherwise a truncated payload would spin here forever.
+                        throw new IllegalStateException("Received a truncated payload");
+                    }
+                    out.write(chunk, 0, inflated);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Received a corrupt payload", e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        synchronized long recordsReceived() { return recordsReceived; }
+        synchronized long bytesReceived() { return bytesReceived; }
+        synchronized long sinkNanos() { return sinkNanos; }
+    }
+
+    /**
+     * The multi-channel buffer from {@code MultiChannelDemo}, with the pre-flush stage run by each flush task before it
+     * writes to the database.
+     */
+    static class CoalescingMultiChannelBuffer {
+        private final int bufferCapacity;
+        private final PreFlushStage stage;
+        private final BandwidthDatabase database;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final List<List<KeyedRecord>> buffers = new ArrayList<>();
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private int activeChannelIndex = 0;
+
+        CoalescingMultiChannelBuffer(int numChannels, int bufferCapacity, PreFlushStage stage,
+                                     BandwidthDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.stage = stage;
+            this.database = database;
+            for (int i = 0; i < numChannels; i++) {
+                buffers.add(new ArrayList<>(bufferCapacity));
+                pendingFlushes.add(null);
+            }
+        }
+
+        synchronized void write(KeyedRecord record) throws InterruptedException {
+            List<KeyedRecord> active = buffers.get(activeChannelIndex);
+            active.add(record);
+            if (active.size() < bufferCapacity) {
+                return;
+            }
+
+            buffers.set(activeChannelIndex, new ArrayList<>(bufferCapacity));
+            pendingFlushes.set(activeChannelIndex, flushExecutor.submit(() -> {
+                database.write(stage.prepare(active));
+                return null;
+            }));
+
+            int nextChannel = (activeChannelIndex + 1) % buffers.size();
+            await(pendingFlushes.get(nextChannel));
+            pendingFlushes.set(nextChannel, null);
+            activeChannelIndex = nextChannel;
+        }
+
+        synchronized void close() throws InterruptedException {
+            List<KeyedRecord> active = buffers.get(activeChannelIndex);
+            if (!active.isEmpty()) {
+                database.write(stage.prepare(active));
+                active.clear();
+            }
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static void await(Future<Void> pendingFlush) throws InterruptedException {
+            if (pendingFlush == null) {
+                return;
+            }
+            try {
+                pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+        }
+    }
+}
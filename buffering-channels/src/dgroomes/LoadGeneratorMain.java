@@ -0,0 +1,338 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * An open-loop load generator that drives the single-channel and multi-channel buffers from many producer threads
+ * and reports throughput and end-to-end record latency.
+ * <p>
+ * The demos use one producer that sleeps for a fixed time between records. That is a closed loop: when the buffer
+ * blocks, the producer simply sends its next record later, and the time it spent blocked never shows up in any
+ * measurement. This is "coordinated omission". A real system's records keep arriving whether or not the buffer is
+ * keeping up.
+ * <p>
+ * This harness is open loop. Every record has an intended send time on a fixed schedule at the target rate, spread
+ * across the producers. A producer waits until its next record's intended time, but if it is already behind schedule
+ * it sends right away without skipping anything. A record's latency is measured from its intended send time to the
+ * moment the database finishes writing it, so time spent blocked behind a slow buffer counts against every record
+ * that was delayed by it.
+ * <p>
+ * The harness sweeps the number of producers, the batch size and the sink latency for each buffer.
+ */
+public class LoadGeneratorMain {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TARGET_RATE = 5_000;
+    private static final Duration RUN_DURATION = Duration.ofSeconds(2);
+    private static final int[] PRODUCER_COUNTS = {1, 8, 64};
+    private static final int[] BATCH_SIZES = {10, 100};
+    private static final Duration[] SINK_LATENCIES = {Duration.ofMillis(1), Duration.ofMillis(5)};
+    private static final int NUM_CHANNELS = 2;
+    private static final Duration MAX_LINGER = Duration.ofMillis(10);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        int totalRecords = (int) (TARGET_RATE * RUN_DURATION.toMillis() / 1000);
+        log.info("=== Open-Loop Load Generator ===");
+        log.info("Target rate: %,d rec/s, Records per run: %,d, Channels: %d, Max linger: %dms".formatted(
+                TARGET_RATE, totalRecords, NUM_CHANNELS, MAX_LINGER.toMillis()));
+        log.info("");
+
+        var results = new ArrayList<String>();
+        for (Duration sinkLatency : SINK_LATENCIES) {
+            for (int batchSize : BATCH_SIZES) {
+                for (int producers : PRODUCER_COUNTS) {
+                    for (BufferType type : BufferType.values()) {
+                        Result result = run(type, producers, batchSize, sinkLatency, totalRecords);
+                        log.info("Finished %s with %d producers, batch size %d and %dms sink latency".formatted(
+                                type.label, producers, batchSize, sinkLatency.toMillis()));
+                        results.add("%-6s | %9d | %5d | %7d | %,10.0f | %8.1f | %8.1f | %8.1f | %8.1f".formatted(
+                                type.label, producers, batchSize, sinkLatency.toMillis(), result.recordsPerSecond(),
+                                result.percentileMillis(50), result.percentileMillis(99),
+                                result.percentileMillis(99.9), result.percentileMillis(100)));
+                    }
+                }
+            }
+        }
+
+        log.info("");
+        log.info("=== Results (latency in ms, from intended send time to written) ===");
+        log.info("%-6s | %9s | %5s | %7s | %10s | %8s | %8s | %8s | %8s".formatted(
+                "buffer", "producers", "batch", "sink ms", "rec/s", "p50", "p99", "p99.9", "max"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("When a buffer can't keep up with the target rate, records fall behind their schedule and the latency");
+        log.info("percentiles grow with the backlog instead of hiding it.");
+    }
+
+    enum BufferType {
+        SINGLE("single"),
+        MULTI("multi");
+
+        final String label;
+
+        BufferType(String label) {
+            this.label = label;
+        }
+    }
+
+    private static Result run(BufferType type, int producers, int batchSize, Duration sinkLatency, int totalRecords)
+            throws InterruptedException {
+        var database = new SimulatedDatabase(sinkLatency, totalRecords);
+        RecordBuffer buffer = switch (type) {
+            case SINGLE -> new SingleChannelBuffer(batchSize, MAX_LINGER, database);
+            case MULTI -> new MultiChannelBuffer(NUM_CHANNELS, batchSize, MAX_LINGER, database);
+        };
+
+        long intervalNanos = 1_000_000_000L / TARGET_RATE;
+        long start = System.nanoTime();
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().name("producer-" + p).start(() -> {
+                try {
+                    // Producer p sends records p, p + producers, p + 2 * producers, ... of the global schedule.
+                    for (long i = producer; i < totalRecords; i += producers) {
+                        long intended = start + i * intervalNanos;
+                        long wait = intended - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        buffer.write(new TimedRecord(intended));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        buffer.close();
+        long elapsed = System.nanoTime() - start;
+
+        long[] latencies = database.latencies();
+        if (latencies.length != totalRecords) {
+            throw new IllegalStateException("Expected %d records to be written but there were %d".formatted(
+                    totalRecords, latencies.length));
+        }
+        Arrays.sort(latencies);
+        return new Result(totalRecords / (elapsed / 1_000_000_000.0), latencies);
+    }
+
+    record Result(double recordsPerSecond, long[] sortedLatencyNanos) {
+        double percentileMillis(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length) - 1;
+            return sortedLatencyNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    /**
+     * A record that carries the time it was supposed to be sent.
+     */
+    record TimedRecord(long intendedNanos) {}
+
+    interface RecordBuffer {
+        void write(TimedRecord record) throws InterruptedException;
+
+        /**
+         * Flush the remaining records and wait for all flushes to complete.
+         */
+        void close() throws InterruptedException;
+    }
+
+    /**
+     * A simulated database that records each record's latency when the write completes. Unlike the demos' database,
+     * concurrent writes don't wait on each other.
+     */
+    static class SimulatedDatabase {
+        private final Duration latency;
+        private final long[] latencies;
+        private int count = 0;
+
+        SimulatedDatabase(Duration latency, int expectedRecords) {
+            this.latency = latency;
+            this.latencies = new long[expectedRecords];
+        }
+
+        void write(List<TimedRecord> records) throws InterruptedException {
+            Thread.sleep(latency);
+            long now = System.nanoTime();
+            synchronized (this) {
+                for (TimedRecord record : records) {
+                    latencies[count++] = now - record.intendedNanos();
+                }
+            }
+        }
+
+        synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+
+    /**
+     * The single-channel buffer from {@code SingleChannelDemo}: the flush happens while holding the lock, so every
+     * producer blocks for the whole flush.
+     */
+    static class SingleChannelBuffer implements RecordBuffer {
+        private final int capacity;
+        private final Duration maxLinger;
+        private final SimulatedDatabase database;
+        private final ScheduledExecutorService lingerScheduler = Executors.newSingleThreadScheduledExecutor();
+        private List<TimedRecord> buffer;
+        private int batch = 0;
+        private ScheduledFuture<?> lingerDeadline = null;
+
+        SingleChannelBuffer(int capacity, Duration maxLinger, SimulatedDatabase database) {
+            this.capacity = capacity;
+            this.maxLinger = maxLinger;
+            this.database = database;
+            this.buffer = new ArrayList<>(capacity);
+        }
+
+        @Override
+        public synchronized void write(TimedRecord record) throws InterruptedException {
+            if (buffer.isEmpty()) {
+                int currentBatch = batch;
+                lingerDeadline = lingerScheduler.schedule(() -> {
+                    lingerExpired(currentBatch);
+                    return null;
+                }, maxLinger.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            buffer.add(record);
+            if (buffer.size() >= capacity) {
+                flush();
+            }
+        }
+
+        private synchronized void lingerExpired(int expiredBatch) throws InterruptedException {
+            if (batch == expiredBatch && !buffer.isEmpty()) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            lingerDeadline.cancel(false);
+            batch++;
+            database.write(buffer);
+            buffer = new ArrayList<>(capacity);
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            lingerScheduler.shutdownNow();
+            if (!buffer.isEmpty()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * The multi-channel buffer from {@code MultiChannelDemo}: a full channel flushes asynchronously while writes move
+     * to the next channel, and a producer only blocks when the next channel is still flushing.
+     */
+    static class MultiChannelBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final Duration maxLinger;
+        private final SimulatedDatabase database;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final ScheduledExecutorService lingerScheduler = Executors.newSingleThreadScheduledExecutor();
+        private final Channel[] channels;
+        private int activeChannelIndex = 0;
+
+        MultiChannelBuffer(int numChannels, int bufferCapacity, Duration maxLinger, SimulatedDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.maxLinger = maxLinger;
+            this.database = database;
+            this.channels = new Channel[numChannels];
+            for (int i = 0; i < numChannels; i++) {
+                channels[i] = new Channel(new ArrayList<>(bufferCapacity));
+            }
+        }
+
+        @Override
+        public synchronized void write(TimedRecord record) throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            if (active.buffer.isEmpty()) {
+                int batch = active.batch;
+                active.lingerDeadline = lingerScheduler.schedule(() -> {
+                    lingerExpired(active, batch);
+                    return null;
+                }, maxLinger.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            active.buffer.add(record);
+            if (active.buffer.size() >= bufferCapacity) {
+                flushActive();
+            }
+        }
+
+        private synchronized void lingerExpired(Channel channel, int batch) throws InterruptedException {
+            if (channel == channels[activeChannelIndex] && channel.batch == batch && !channel.buffer.isEmpty()) {
+                flushActive();
+            }
+        }
+
+        private void flushActive() throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            active.lingerDeadline.cancel(false);
+            active.batch++;
+
+            List<TimedRecord> toFlush = active.buffer;
+            active.buffer = new ArrayList<>(bufferCapacity);
+            active.pendingFlush = flushExecutor.submit(() -> {
+                database.write(toFlush);
+                return null;
+            });
+
+            activeChannelIndex = (activeChannelIndex + 1) % channels.length;
+            await(channels[activeChannelIndex]);
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            lingerScheduler.shutdownNow();
+            Channel active = channels[activeChannelIndex];
+            if (!active.buffer.isEmpty()) {
+                database.write(active.buffer);
+                active.buffer = new ArrayList<>(bufferCapacity);
+            }
+            for (Channel channel : channels) {
+                await(channel);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static void await(Channel channel) throws InterruptedException {
+            if (channel.pendingFlush == null) {
+                return;
+            }
+            try {
+                channel.pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+            channel.pendingFlush = null;
+        }
+
+        static class Channel {
+            List<TimedRecord> buffer;
+            Future<Void> pendingFlush = null;
+            int batch = 0;
+            ScheduledFuture<?> lingerDeadline = null;
+
+            Channel(List<TimedRecord> buffer) {
+                this.buffer = buffer;
+            }
+        }
+    }
+}
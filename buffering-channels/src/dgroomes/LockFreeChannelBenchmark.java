@@ -0,0 +1,351 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Compares the synchronized multi-channel buffer against a lock-free variant when many producer threads write
+ * concurrently.
+ * <p>
+ * The synchronized buffer serializes every producer on one monitor, even though most writes only append to a list. The
+ * lock-free buffer lets producers claim a slot in the active channel with a single compare-and-swap style increment
+ * (an {@link AtomicInteger#getAndIncrement()}) and write their record into that slot without taking a lock. The
+ * "switch channels while the other one flushes" semantics are the same: the producer that fills the last slot of a
+ * channel hands it off for flushing and switches the buffer over to the next channel.
+ */
+public class LockFreeChannelBenchmark {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int[] PRODUCER_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int TOTAL_RECORDS = 10_000_000;
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 1_000;
+    // The sink is instantaneous so that the benchmark measures the cost of the write path and not the network.
+    private static final Duration NETWORK_LATENCY = Duration.ZERO;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Lock-Free vs. Synchronized Multi-Channel Buffer Benchmark ===");
+        log.info("Total records per run: %,d, Channels: %d, Buffer size: %,d, Network latency: %dms".formatted(
+                TOTAL_RECORDS, NUM_CHANNELS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("Available processors: %d".formatted(Runtime.getRuntime().availableProcessors()));
+        log.info("");
+
+        // Build the records up front so that the benchmark measures the buffers and not String concatenation.
+        var records = new String[TOTAL_RECORDS];
+        for (int i = 0; i < TOTAL_RECORDS; i++) {
+            records[i] = "record-" + (i + 1);
+        }
+
+        log.info("Warming up...");
+        run("synchronized", SynchronizedMultiChannelBuffer::new, 4, records);
+        run("lock-free", LockFreeMultiChannelBuffer::new, 4, records);
+        log.info("");
+
+        log.info("=== Results ===");
+        log.info("%10s | %22s | %22s | %8s".formatted("producers", "synchronized (rec/s)", "lock-free (rec/s)", "speedup"));
+        for (int producers : PRODUCER_COUNTS) {
+            double synchronizedRate = run("synchronized", SynchronizedMultiChannelBuffer::new, producers, records);
+            double lockFreeRate = run("lock-free", LockFreeMultiChannelBuffer::new, producers, records);
+            log.info("%10d | %,22.0f | %,22.0f | %7.2fx".formatted(
+                    producers, synchronizedRate, lockFreeRate, lockFreeRate / synchronizedRate));
+        }
+    }
+
+    /**
+     * Write all the records through a fresh buffer, split evenly across the given number of producer threads.
+     *
+     * @return the throughput in records per second
+     */
+    private static double run(String name, BufferFactory factory, int producers, String[] records) throws Exception {
+        var database = new SimulatedDatabase(NETWORK_LATENCY);
+        var buffer = factory.create(NUM_CHANNELS, BUFFER_SIZE, database);
+        var startGate = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        int perProducer = records.length / producers;
+
+        for (int p = 0; p < producers; p++) {
+            int from = p * perProducer;
+            int to = (p == producers - 1) ? records.length : from + perProducer;
+            threads.add(Thread.ofPlatform().name("producer-" + p).start(() -> {
+                try {
+                    startGate.await();
+                    for (int i = from; i < to; i++) {
+                        buffer.write(records[i]);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        buffer.close();
+        long elapsed = System.nanoTime() - start;
+
+        if (database.totalRecordsWritten() != records.length) {
+            throw new IllegalStateException("The '%s' buffer lost records. Expected %d but the database received %d".formatted(
+                    name, records.length, database.totalRecordsWritten()));
+        }
+        return records.length / (elapsed / 1_000_000_000.0);
+    }
+
+    @FunctionalInterface
+    interface BufferFactory {
+        RecordBuffer create(int numChannels, int bufferCapacity, SimulatedDatabase database);
+    }
+
+    interface RecordBuffer {
+        void write(String record) throws InterruptedException;
+
+        void close() throws InterruptedException;
+    }
+
+    /**
+     * A quiet version of the simulated database. Logging every flush would drown out the cost of the buffers.
+     */
+    static class SimulatedDatabase {
+        private final Duration latency;
+        private final AtomicLong totalRecordsWritten = new AtomicLong();
+
+        SimulatedDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        void write(List<String> records) throws InterruptedException {
+            Thread.sleep(latency);
+            totalRecordsWritten.addAndGet(records.size());
+        }
+
+        long totalRecordsWritten() { return totalRecordsWritten.get(); }
+    }
+
+    /**
+     * The multi-channel buffer from {@code MultiChannelDemo}, without the logging. Every write takes the buffer's
+     * monitor.
+     */
+    static class SynchronizedMultiChannelBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final ExecutorService flushExecutor;
+        private final List<List<String>> buffers = new ArrayList<>();
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private int activeChannelIndex = 0;
+
+        SynchronizedMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            for (int i = 0; i < numChannels; i++) {
+                buffers.add(new ArrayList<>(bufferCapacity));
+                pendingFlushes.add(null);
+            }
+        }
+
+        @Override
+        public synchronized void write(String record) throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            active.add(record);
+
+            if (active.size() >= bufferCapacity) {
+                List<String> toFlush = new ArrayList<>(active);
+                active.clear();
+                pendingFlushes.set(activeChannelIndex, flushExecutor.submit(() -> {
+                    database.write(toFlush);
+                    return null;
+                }));
+
+                int nextChannel = (activeChannelIndex + 1) % buffers.size();
+                await(pendingFlushes.get(nextChannel));
+                pendingFlushes.set(nextChannel, null);
+                activeChannelIndex = nextChannel;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            if (!active.isEmpty()) {
+                database.write(new ArrayList<>(active));
+                active.clear();
+            }
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * A multi-channel buffer whose write path takes no locks.
+     * <p>
+     * Each channel is a fixed-size array of slots. A producer claims a slot by atomically incrementing the channel's
+     * {@code claimed} counter, stores its record in the slot, and then increments the channel's {@code published}
+     * counter. The producer whose increment brings {@code published} up to the capacity knows that every slot has been
+     * written, so it is the one (and only one) that seals the channel: it submits the channel for flushing and switches
+     * the active channel to the next one.
+     * <p>
+     * Producers that claim a slot past the end of a full channel don't write anything. They back off until the active
+     * channel changes and then try again. Like the synchronized buffer, the only truly blocking wait is when the next
+     * channel is still flushing.
+     * <p>
+     * A channel is only reused after its flush has completed, so the flush reads the records straight out of the slot
+     * array and no copy is needed.
+     */
+    static class LockFreeMultiChannelBuffer implements RecordBuffer {
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final ExecutorService flushExecutor;
+        private final Channel[] channels;
+        private volatile Channel active;
+        private volatile boolean closed = false;
+
+        LockFreeMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.channels = new Channel[numChannels];
+            for (int i = 0; i < numChannels; i++) {
+                channels[i] = new Channel(i, bufferCapacity);
+            }
+            this.active = channels[0];
+        }
+
+        @Override
+        public void write(String record) throws InterruptedException {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("Buffer is closed");
+                }
+
+                Channel channel = active;
+                int slot = channel.claimed.getAndIncrement();
+                if (slot < bufferCapacity) {
+                    channel.slots[slot] = record;
+                    if (channel.published.incrementAndGet() == bufferCapacity) {
+                        switchFrom(channel);
+                    }
+                    return;
+                }
+
+                // The channel is full and another producer is in the middle of sealing it, or it has just become the
+                // active channel and its claimed counter isn't reset yet. Wait for the switch. Checking the claimed
+                // counter too (and not just the identity of the active channel) means we don't miss a switch that has
+                // already cycled all the way back around to this same channel.
+                var backoff = new Backoff();
+                while (active == channel && channel.claimed.get() >= bufferCapacity) {
+                    backoff.pause();
+                }
+            }
+        }
+
+        /**
+         * Hand off the given (full) channel for flushing and make the next channel the active one. Only the producer
+         * that published the final record into the channel calls this, so there is never more than one switch in
+         * progress at a time.
+         * <p>
+         * That relies on a channel's slots only being claimable while it is the active channel. A stale producer may
+         * still hold a reference to the next channel from the last time it was active. If the counters were reset before
+         * the switch, enough stale producers could fill the channel and start a second switch before this one has
+         * published it as the active channel.
+         */
+        private void switchFrom(Channel full) throws InterruptedException {
+            List<String> toFlush = Arrays.asList(full.slots);
+            full.pendingFlush = flushExecutor.submit(() -> {
+                database.write(toFlush);
+                return null;
+            });
+
+            Channel next = channels[(full.id + 1) % channels.length];
+            await(next.pendingFlush);
+            next.pendingFlush = null;
+
+            // Reset 'published' first, then make the channel active, then reset 'claimed'. A producer can only claim a real
+            // slot once 'claimed' is reset, so its publish can never be wiped out by the reset, and by then the channel
+            // is already the active one. Producers that see the new active channel before 'claimed' is reset find it
+            // full and wait for the reset.
+            next.published.set(0);
+            active = next;
+            next.claimed.set(0);
+        }
+
+        /**
+         * Flush whatever is left in the active channel. This assumes that the producers have finished writing.
+         */
+        @Override
+        public void close() throws InterruptedException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            Channel channel = active;
+            int remaining = channel.published.get();
+            if (remaining > 0) {
+                database.write(new ArrayList<>(Arrays.asList(channel.slots).subList(0, remaining)));
+            }
+
+            for (Channel c : channels) {
+                await(c.pendingFlush);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        static class Channel {
+            final int id;
+            final String[] slots;
+            final AtomicInteger claimed = new AtomicInteger();
+            final AtomicInteger published = new AtomicInteger();
+            volatile Future<Void> pendingFlush = null;
+
+            Channel(int id, int capacity) {
+                this.id = id;
+                this.slots = new String[capacity];
+            }
+        }
+    }
+
+    /**
+     * Spin briefly, then yield, then park. Spinning is the cheapest way to wait for a switch that is a few nanoseconds
+     * away, but it would waste a whole core when the switch is stuck behind a slow flush.
+     */
+    static class Backoff {
+        private int attempts = 0;
+
+        void pause() {
+            attempts++;
+            if (attempts < 100) {
+                Thread.onSpinWait();
+            } else if (attempts < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    private static void await(Future<Void> pendingFlush) throws InterruptedException {
+        if (pendingFlush == null) {
+            return;
+        }
+        try {
+            pendingFlush.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Flush failed", e);
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package dgroomes;
 
+import jdk.jfr.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
 /**
@@ -21,19 +36,33 @@ public class MultiChannelDemo {
     private static final int TOTAL_RECORDS = 20;
     private static final int BUFFER_SIZE = 5;
     private static final Duration NETWORK_LATENCY = Duration.ofMillis(500);
+    private static final Duration NETWORK_JITTER = Duration.ofMillis(100);
+    private static final int NETWORK_BANDWIDTH_BYTES_PER_SECOND = 1024 * 1024;
     private static final Duration RECORD_PROCESSING_TIME = Duration.ofMillis(50);
+    private static final Duration MAX_LINGER = Duration.ofMillis(400);
+    private static final int LULL_AFTER_RECORD = 12;
+    private static final Duration LULL = Duration.ofSeconds(1);
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
 
         log.info("=== Multi-Channel Buffered Write Demo ===");
         log.info("This demonstrates OVERLAPPED I/O with two channels.");
-        log.info("Total records: %d, Buffer size: %d, Network latency: %dms".formatted(
-                TOTAL_RECORDS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("Total records: %d, Buffer size: %d, Network latency: %dms, Max linger: %dms".formatted(
+                TOTAL_RECORDS, BUFFER_SIZE, NETWORK_LATENCY.toMillis(), MAX_LINGER.toMillis()));
+        boolean loopback = List.of(args).contains("--loopback");
+        if (loopback) {
+            log.info("Sink: loopback TCP database with %dms jitter and %,d bytes/s bandwidth".formatted(
+                    NETWORK_JITTER.toMillis(), NETWORK_BANDWIDTH_BYTES_PER_SECOND));
+        } else {
+            log.info("Sink: simulated database (run with --loopback to use a loopback TCP database)");
+        }
         log.info("");
 
-        var database = new SimulatedDatabase(NETWORK_LATENCY);
-        var multiBuffer = new MultiChannelBuffer(2, BUFFER_SIZE, database);
+        Sink database = loopback
+                ? new LoopbackDatabase(NETWORK_LATENCY, NETWORK_JITTER, NETWORK_BANDWIDTH_BYTES_PER_SECOND)
+                : new SimulatedDatabase(NETWORK_LATENCY);
+        var multiBuffer = new MultiChannelBuffer(2, BUFFER_SIZE, MAX_LINGER, database);
 
         Instant start = Instant.now();
 
@@ -41,9 +70,18 @@ public class MultiChannelDemo {
             Thread.sleep(RECORD_PROCESSING_TIME);
             log.info("Produced record #%d".formatted(i));
             multiBuffer.write("record-" + i);
+
+            if (i == LULL_AFTER_RECORD) {
+                log.info("Traffic lull for %dms. The linger deadline will flush the partially filled channel.".formatted(
+                        LULL.toMillis()));
+                Thread.sleep(LULL);
+            }
         }
 
         multiBuffer.close();
+        if (database instanceof LoopbackDatabase loopbackDatabase) {
+            loopbackDatabase.close();
+        }
 
         Instant end = Instant.now();
         Duration elapsed = Duration.between(start, end);
@@ -52,12 +90,37 @@ public class MultiChannelDemo {
         log.info("=== Results ===");
         log.info("Total records written: %d".formatted(database.totalRecordsWritten()));
         log.info("Total flush operations: %d".formatted(database.totalFlushOperations()));
+        if (database instanceof LoopbackDatabase loopbackDatabase) {
+            log.info("Total bytes sent over loopback: %,d".formatted(loopbackDatabase.totalBytesSent()));
+        }
+        log.info("Size-triggered flushes: %d, Time-triggered flushes: %d".formatted(
+                multiBuffer.sizeTriggeredFlushes(), multiBuffer.timeTriggeredFlushes()));
         log.info("Total execution time: %s".formatted(elapsed));
         log.info("");
+        log.info("=== Buffer Stats ===");
+        var stats = multiBuffer.stats();
+        log.info("Records written: %d, Records in the active channel: %d, Channels flushing: %d".formatted(
+                stats.recordsWritten(), stats.activeChannelRecords(), stats.channelsFlushing()));
+        log.info("Producer block time (ms): %s".formatted(stats.producerBlockNanos().formatMillis()));
+        log.info("Flush duration (ms):      %s".formatted(stats.flushNanos().formatMillis()));
+        log.info("Batch size (records):     %s".formatted(stats.batchSize()));
+        log.info("");
         log.info("Compare this to the single-channel demo to see the throughput improvement!");
     }
 
-    static class SimulatedDatabase {
+    /**
+     * Where a buffer sends its batches. {@link SimulatedDatabase} only sleeps, while {@link LoopbackDatabase} does real
+     * socket I/O.
+     */
+    interface Sink {
+        void write(List<String> records) throws InterruptedException;
+
+        int totalRecordsWritten();
+
+        int totalFlushOperations();
+    }
+
+    static class SimulatedDatabase implements Sink {
         private final Duration latency;
         private int totalRecordsWritten = 0;
         private int totalFlushOperations = 0;
@@ -67,7 +130,8 @@ public class MultiChannelDemo {
             this.latency = latency;
         }
 
-        synchronized void write(List<String> records) throws InterruptedException {
+        @Override
+        public synchronized void write(List<String> records) throws InterruptedException {
             log.info("  [DB] Flushing %d records over the network...".formatted(records.size()));
             Thread.sleep(latency);
             totalRecordsWritten += records.size();
@@ -75,14 +139,33 @@ public class MultiChannelDemo {
             log.info("  [DB] Flush complete.");
         }
 
-        synchronized int totalRecordsWritten() { return totalRecordsWritten; }
-        synchronized int totalFlushOperations() { return totalFlushOperations; }
+        @Override
+        public synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+        @Override
+        public synchronized int totalFlushOperations() { return totalFlushOperations; }
     }
 
     /**
      * A thread-safe multi-channel buffer that maintains multiple "channels" (buffers).
      * When the active channel fills up and starts flushing, writes switch to the next available channel.
      * The program only blocks when all channels are busy flushing.
+     * <p>
+     * A channel is flushed when either it is full (size-triggered) or its oldest record has waited for the max linger
+     * duration (time-triggered). This is like Kafka's {@code linger.ms}. The linger deadline is driven by a scheduler,
+     * not by the next call to {@link #write}, so records don't sit in a partially filled channel indefinitely when
+     * traffic is light.
+     * <p>
+     * Flushing does not copy the channel's buffer. Instead, the filled buffer is handed to the flush task and swapped
+     * out for an empty one from a pool of spare buffers. When the flush completes, the flush task clears the buffer and
+     * returns it to the pool. The spare buffers are allocated up front at full capacity, so in steady state the write
+     * path doesn't allocate any buffers or grow any arrays.
+     * <p>
+     * The buffer records metrics as it goes: histograms of producer block time (waiting for the next channel's flush),
+     * flush duration and batch size, and gauges for channel occupancy. {@link #stats()} returns a snapshot of them. The
+     * same measurements are emitted as JFR events, so they can be recorded in production with
+     * {@code -XX:StartFlightRecording} and inspected with JDK Mission Control or the {@code jfr} tool. Recording a value
+     * in a histogram takes three atomic updates and no lock, and a JFR event that isn't enabled costs little more than a
+     * branch.
      *
      * Thread-safety: All public methods are synchronized to allow safe concurrent writes from
      * multiple threads. The lock is held only during the fast buffer operations; the slow network
@@ -90,21 +173,45 @@ public class MultiChannelDemo {
      */
     static class MultiChannelBuffer {
         private final int bufferCapacity;
-        private final SimulatedDatabase database;
+        private final Duration maxLinger;
+        private final Sink database;
         private final ExecutorService flushExecutor;
+        private final ScheduledExecutorService lingerScheduler;
         private final Channel[] channels;
+        private final BlockingQueue<List<String>> spareBuffers;
         private int activeChannelIndex = 0;
         private boolean closed = false;
+        private int sizeTriggeredFlushes = 0;
+        private int timeTriggeredFlushes = 0;
+        private final Histogram producerBlockNanos = new Histogram();
+        private final Histogram flushNanos = new Histogram();
+        private final Histogram batchSize = new Histogram();
+        // The gauges are only written while holding the lock, but they are read without it so that the JFR periodic
+        // event and stats() never wait behind a producer that is blocked on a flush.
+        private volatile long recordsWritten = 0;
+        private volatile int activeChannelRecords = 0;
+        private final AtomicInteger channelsFlushing = new AtomicInteger();
+        private final Runnable occupancyHook = this::emitOccupancyEvent;
         private static final Logger log = Logger.getAnonymousLogger();
 
-        MultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database) {
+        MultiChannelBuffer(int numChannels, int bufferCapacity, Duration maxLinger, Sink database) {
             this.bufferCapacity = bufferCapacity;
+            this.maxLinger = maxLinger;
             this.database = database;
             this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.lingerScheduler = Executors.newSingleThreadScheduledExecutor();
             this.channels = new Channel[numChannels];
             for (int i = 0; i < numChannels; i++) {
-                channels[i] = new Channel(i);
+                channels[i] = new Channel(i, new ArrayList<>(bufferCapacity));
             }
+
+            // Each channel can have at most one flush in flight, so one spare buffer per channel is enough.
+            this.spareBuffers = new ArrayBlockingQueue<>(numChannels);
+            for (int i = 0; i < numChannels; i++) {
+                spareBuffers.add(new ArrayList<>(bufferCapacity));
+            }
+
+            FlightRecorder.addPeriodicEvent(OccupancyEvent.class, occupancyHook);
         }
 
         synchronized void write(String record) throws InterruptedException {
@@ -114,52 +221,147 @@ public class MultiChannelDemo {
 
             Channel active = channels[activeChannelIndex];
 
+            if (active.buffer.isEmpty()) {
+                // This is the first record of a new batch, so the linger clock starts now.
+                int batch = active.batch;
+                active.lingerDeadline = lingerScheduler.schedule(() -> {
+                    lingerExpired(active, batch);
+                    return null;
+                }, maxLinger.toNanos(), TimeUnit.NANOSECONDS);
+            }
+
             active.buffer.add(record);
+            activeChannelRecords = active.buffer.size();
+            recordsWritten++;
 
             if (active.buffer.size() >= bufferCapacity) {
                 log.info("Channel %d buffer full, initiating async flush...".formatted(activeChannelIndex));
+                sizeTriggeredFlushes++;
+                flushActive();
+            }
+        }
 
-                List<String> toFlush = new ArrayList<>(active.buffer);
-                active.buffer.clear();
+        /**
+         * Called by the scheduler when a batch has lingered for the max linger duration. The batch may have already been
+         * flushed because it filled up in the meantime, so only flush if it is still the active, unflushed batch.
+         */
+        private synchronized void lingerExpired(Channel channel, int batch) throws InterruptedException {
+            if (closed || channel.id != activeChannelIndex || channel.batch != batch || channel.buffer.isEmpty()) {
+                return;
+            }
 
-                active.pendingFlush = flushExecutor.submit(() -> {
-                    database.write(toFlush);
-                    return null;
-                });
+            log.info("Channel %d lingered for %dms with %d records, initiating async flush...".formatted(
+                    channel.id, maxLinger.toMillis(), channel.buffer.size()));
+            timeTriggeredFlushes++;
+            flushActive();
+        }
 
-                int nextChannel = (activeChannelIndex + 1) % channels.length;
-                Channel next = channels[nextChannel];
+        /**
+         * Kick off an asynchronous flush of the active channel and switch to the next channel, blocking if the next
+         * channel is still flushing.
+         */
+        private void flushActive() throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            active.lingerDeadline.cancel(false);
+            active.batch++;
 
-                if (next.pendingFlush != null) {
-                    log.info("Channel %d is still flushing, waiting... (BLOCKING)".formatted(nextChannel));
-                    try {
-                        next.pendingFlush.get();
-                    } catch (ExecutionException e) {
-                        throw new RuntimeException("Flush failed", e);
-                    }
-                    next.pendingFlush = null;
-                    log.info("Channel %d is now available.".formatted(nextChannel));
-                } else {
-                    log.info("Switching to channel %d (no blocking needed!)".formatted(nextChannel));
-                }
+            List<String> toFlush = active.buffer;
+            active.buffer = spareBuffers.remove();
 
-                activeChannelIndex = nextChannel;
+            int channelId = active.id;
+            channelsFlushing.incrementAndGet();
+            active.pendingFlush = flushExecutor.submit(() -> {
+                try {
+                    timedWrite(channelId, toFlush);
+                } finally {
+                    // Recycle the buffer even if the write failed. Otherwise the pool runs dry and a later flush fails
+                    // with an empty pool instead of this flush's error.
+                    toFlush.clear();
+                    spareBuffers.add(toFlush);
+                    channelsFlushing.decrementAndGet();
+                }
+                return null;
+            });
+            // Every channel's buffer is swapped for an empty spare when it's flushed, so the next channel starts empty.
+            activeChannelRecords = 0;
+
+            int nextChannel = (activeChannelIndex + 1) % channels.length;
+            Channel next = channels[nextChannel];
+
+            if (next.pendingFlush != null) {
+                log.info("Channel %d is still flushing, waiting... (BLOCKING)".formatted(nextChannel));
+                var event = new ProducerBlockedEvent();
+                event.begin();
+                long blockStart = System.nanoTime();
+                try {
+                    next.pendingFlush.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Flush failed", e);
+                }
+                producerBlockNanos.record(System.nanoTime() - blockStart);
+                event.channel = nextChannel;
+                event.commit();
+                next.pendingFlush = null;
+                log.info("Channel %d is now available.".formatted(nextChannel));
+            } else {
+                producerBlockNanos.record(0);
+                log.info("Switching to channel %d (no blocking needed!)".formatted(nextChannel));
             }
+
+            activeChannelIndex = nextChannel;
+        }
+
+        /**
+         * Write a batch to the database, recording its duration and size.
+         */
+        private void timedWrite(int channelId, List<String> records) throws InterruptedException {
+            var event = new FlushEvent();
+            event.begin();
+            long flushStart = System.nanoTime();
+            database.write(records);
+            flushNanos.record(System.nanoTime() - flushStart);
+            batchSize.record(records.size());
+            event.channel = channelId;
+            event.records = records.size();
+            event.commit();
+        }
+
+        private void emitOccupancyEvent() {
+            var event = new OccupancyEvent();
+            event.activeChannelRecords = activeChannelRecords;
+            event.channelsFlushing = channelsFlushing.get();
+            event.commit();
         }
 
+        /**
+         * A snapshot of the buffer's gauges and histograms. The whole snapshot is read without the buffer's lock, so it
+         * never waits on a blocked producer, but each value is read separately and a snapshot taken while writes are in
+         * progress may be off by a few samples.
+         */
+        Stats stats() {
+            return new Stats(recordsWritten, activeChannelRecords, channelsFlushing.get(),
+                    producerBlockNanos.snapshot(), flushNanos.snapshot(), batchSize.snapshot());
+        }
+
+        synchronized int sizeTriggeredFlushes() { return sizeTriggeredFlushes; }
+        synchronized int timeTriggeredFlushes() { return timeTriggeredFlushes; }
+
         synchronized void close() throws InterruptedException {
             if (closed) {
                 return;
             }
             closed = true;
+            lingerScheduler.shutdownNow();
+            FlightRecorder.removePeriodicEvent(occupancyHook);
 
             Channel active = channels[activeChannelIndex];
             if (!active.buffer.isEmpty()) {
                 log.info("Final flush of %d remaining records on channel %d...".formatted(
                         active.buffer.size(), activeChannelIndex));
                 try {
-                    database.write(new ArrayList<>(active.buffer));
+                    timedWrite(active.id, active.buffer);
                     active.buffer.clear();
+                    activeChannelRecords = 0;
                 } catch (InterruptedException e) {
                     throw e;
                 }
@@ -179,14 +381,317 @@ public class MultiChannelDemo {
             flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
         }
 
+        record Stats(long recordsWritten, int activeChannelRecords, int channelsFlushing,
+                     HistogramSnapshot producerBlockNanos, HistogramSnapshot flushNanos, HistogramSnapshot batchSize) {}
+
+        @Name("dgroomes.Flush")
+        @Label("Buffer Flush")
+        @Category("Buffering Channels")
+        @Description("A batch of records written from a channel to the database")
+        static class FlushEvent extends Event {
+            @Label("Channel")
+            int channel;
+
+            @Label("Records")
+            int records;
+        }
+
+        @Name("dgroomes.ProducerBlocked")
+        @Label("Producer Blocked")
+        @Category("Buffering Channels")
+        @Description("A producer waited for the next channel's flush to complete")
+        static class ProducerBlockedEvent extends Event {
+            @Label("Channel")
+            int channel;
+        }
+
+        @Name("dgroomes.ChannelOccupancy")
+        @Label("Channel Occupancy")
+        @Category("Buffering Channels")
+        @Period("1 s")
+        static class OccupancyEvent extends Event {
+            @Label("Records in the Active Channel")
+            int activeChannelRecords;
+
+            @Label("Channels Flushing")
+            int channelsFlushing;
+        }
+
         static class Channel {
             final int id;
-            final List<String> buffer = new ArrayList<>();
+            List<String> buffer;
             Future<Void> pendingFlush = null;
 
-            Channel(int id) {
+            /**
+             * Identifies the batch currently being collected in this channel. It is incremented on every flush so that
+             * a stale linger deadline can tell that its batch is already gone.
+             */
+            int batch = 0;
+            ScheduledFuture<?> lingerDeadline = null;
+
+            Channel(int id, List<String> buffer) {
                 this.id = id;
+                this.buffer = buffer;
+            }
+        }
+    }
+
+    /**
+     * A lock-free histogram with power-of-two buckets. Bucket {@code i} counts values in {@code [2^(i-1), 2^i)}, and
+     * bucket 0 counts zeros. That is coarse, but recording a value is only three atomic updates: an increment of its
+     * bucket, an add to the sum, and a compare-and-set loop on the max. That keeps the cost on the write path small,
+     * though the sum and the max are each a single contended word when many threads record at once.
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        HistogramSnapshot snapshot() {
+            var counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(counts, sum.get(), max.get());
+        }
+    }
+
+    record HistogramSnapshot(long[] buckets, long sum, long max) {
+        long count() {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The upper bound of the bucket that contains the given percentile, capped at the max.
+         */
+        long percentile(double percentile) {
+            long rank = (long) Math.ceil(percentile / 100 * count());
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return format(1);
+        }
+
+        /**
+         * Format a histogram of nanoseconds in milliseconds.
+         */
+        String formatMillis() {
+            return format(1_000_000);
+        }
+
+        private String format(long unit) {
+            return "count=%d mean=%.1f p50=%d p99=%d max=%d".formatted(
+                    count(), mean() / unit, percentile(50) / unit, percentile(99) / unit, max / unit);
+        }
+    }
+
+    /**
+     * A stand-in database that sends every batch over a real TCP connection to an in-process server on the loopback
+     * interface, so a flush pays for serialization, socket writes and system calls and not only for a sleep.
+     * <p>
+     * A batch is sent as one frame: the frame's length, the record count, and then each record as a length-prefixed
+     * UTF-8 string. The server replies with the record count once it has "committed" the batch. Connections are pooled,
+     * and a new one is opened whenever concurrent flushes need more.
+     */
+    static class LoopbackDatabase implements Sink, AutoCloseable {
+        private final LoopbackServer server;
+        private final BlockingQueue<SocketChannel> idleConnections = new LinkedBlockingQueue<>();
+        private final List<SocketChannel> connections = new CopyOnWriteArrayList<>();
+        private int totalRecordsWritten = 0;
+        private int totalFlushOperations = 0;
+        private long totalBytesSent = 0;
+        private static final Logger log = Logger.getAnonymousLogger();
+
+        LoopbackDatabase(Duration latency, Duration jitter, int bytesPerSecond) throws IOException {
+            this.server = new LoopbackServer(latency, jitter, bytesPerSecond);
+        }
+
+        @Override
+        public void write(List<String> records) throws InterruptedException {
+            log.info("  [DB] Flushing %d records over a loopback TCP connection...".formatted(records.size()));
+            ByteBuffer frame = encode(records);
+            int frameBytes = frame.remaining();
+            SocketChannel connection = idleConnections.poll();
+            boolean acknowledged = false;
+            try {
+                if (connection == null) {
+                    connection = SocketChannel.open(server.address());
+                    connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connections.add(connection);
+                }
+                while (frame.hasRemaining()) {
+                    connection.write(frame);
+                }
+                ByteBuffer ack = ByteBuffer.allocate(Integer.BYTES);
+                if (!readFully(connection, ack) || ack.flip().getInt() != records.size()) {
+                    throw new IllegalStateException("The loopback database did not acknowledge the batch");
+                }
+                acknowledged = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write a batch to the loopback database", e);
+            } finally {
+                // A connection that failed part way through a batch can't be trusted for the next one, and it must not
+                // be leaked either.
+                if (!acknowledged && connection != null) {
+                    discard(connection);
+                }
+            }
+            idleConnections.add(connection);
+
+            synchronized (this) {
+                totalRecordsWritten += records.size();
+                totalFlushOperations++;
+                totalBytesSent += frameBytes;
+            }
+            log.info("  [DB] Flush complete.");
+        }
+
+        private void discard(SocketChannel connection) {
+            connections.remove(connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                log.warning("Failed to close a broken connection to the loopback database: " + e);
+            }
+        }
+
+        private static ByteBuffer encode(List<String> records) {
+            var encoded = new ArrayList<byte[]>(records.size());
+            int length = Integer.BYTES;
+            for (String record : records) {
+                byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                length += Integer.BYTES + bytes.length;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+            frame.putInt(length).putInt(records.size());
+            for (byte[] bytes : encoded) {
+                frame.putInt(bytes.length).put(bytes);
+            }
+            return frame.flip();
+        }
+
+        @Override
+        public synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+        @Override
+        public synchronized int totalFlushOperations() { return totalFlushOperations; }
+        synchronized long totalBytesSent() { return totalBytesSent; }
+
+        @Override
+        public void close() throws IOException {
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            server.close();
+        }
+    }
+
+    /**
+     * The server side of {@link LoopbackDatabase}. Each connection is served by its own virtual thread. After reading
+     * and decoding a whole frame, the server waits for the configured latency plus a random jitter plus the frame's
+     * transfer time at the configured bandwidth, and then acknowledges the batch.
+     */
+    static class LoopbackServer implements AutoCloseable {
+        private final ServerSocketChannel serverChannel;
+        private final Duration latency;
+        private final Duration jitter;
+        private final int bytesPerSecond;
+
+        LoopbackServer(Duration latency, Duration jitter, int bytesPerSecond) throws IOException {
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bytesPerSecond = bytesPerSecond;
+            this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread.ofVirtual().name("loopback-acceptor").start(this::acceptConnections);
+        }
+
+        SocketAddress address() throws IOException {
+            return serverChannel.getLocalAddress();
+        }
+
+        private void acceptConnections() {
+            try {
+                while (true) {
+                    SocketChannel connection = serverChannel.accept();
+                    Thread.ofVirtual().start(() -> serve(connection));
+                }
+            } catch (IOException e) {
+                // The server was closed.
+            }
+        }
+
+        private void serve(SocketChannel connection) {
+            try (connection) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+                while (readFully(connection, header.clear())) {
+                    int length = header.flip().getInt();
+                    ByteBuffer body = ByteBuffer.allocate(length);
+                    if (!readFully(connection, body)) {
+                        return;
+                    }
+                    body.flip();
+                    int count = body.getInt();
+                    for (int i = 0; i < count; i++) {
+                        var bytes = new byte[body.getInt()];
+                        body.get(bytes);
+                        // Decode the record like a real database would, even though it is thrown away.
+                        new String(bytes, StandardCharsets.UTF_8);
+                    }
+
+                    long jitterNanos = jitter.isZero() ? 0
+                            : ThreadLocalRandom.current().nextLong(-jitter.toNanos(), jitter.toNanos() + 1);
+                    long transferNanos = (Integer.BYTES + length) * 1_000_000_000L / bytesPerSecond;
+                    Thread.sleep(Duration.ofNanos(Math.max(0, latency.toNanos() + jitterNanos + transferNanos)));
+
+                    ByteBuffer ack = ByteBuffer.allocate(Integer.BYTES).putInt(count).flip();
+                    while (ack.hasRemaining()) {
+                        connection.write(ack);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The connection was closed.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Read until the buffer is full. Returns false if the connection reached end-of-stream first.
+     */
+    private static boolean readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0) {
+                return false;
             }
         }
+        return true;
     }
 }
@@ -0,0 +1,418 @@
+package dgroomes;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Demonstrates multi-channel buffering where the channels are off-heap byte buffers instead of lists of Strings.
+ * <p>
+ * Each record is serialized exactly once, at write time, into a direct {@link ByteBuffer} as a length-prefixed frame: a
+ * 4-byte length followed by the record's UTF-8 bytes. A channel is a handful of fixed-size direct buffers (segments).
+ * When a channel fills up, the flush hands its segments straight to a {@link GatheringByteChannel}, like a
+ * {@link FileChannel} or a {@link SocketChannel}, in one gathering write. There is no per-record object on the heap
+ * and no re-encoding at flush time.
+ * <p>
+ * Two sinks are included as alternatives to the {@code SimulatedDatabase} in the other demos: a file sink and a socket
+ * sink that writes to an in-process loopback server.
+ */
+public class OffHeapChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 2_000_000;
+    private static final int NUM_CHANNELS = 2;
+    private static final int SEGMENTS_PER_CHANNEL = 4;
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Off-Heap Multi-Channel Buffered Write Demo ===");
+        log.info("Total records: %,d, Channels: %d, Channel size: %d segments of %,d bytes".formatted(
+                TOTAL_RECORDS, NUM_CHANNELS, SEGMENTS_PER_CHANNEL, SEGMENT_SIZE));
+        log.info("");
+
+        Path file = Files.createTempFile("off-heap-channels", ".bin");
+        try {
+            try (var sink = new FileSink(file)) {
+                run("file", sink);
+            }
+            log.info("Read back %,d records from %s".formatted(countRecordsInFile(file), file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        log.info("");
+        try (var server = new LoopbackServer()) {
+            try (var sink = new SocketSink(server.address())) {
+                run("socket", sink);
+            }
+            // Closing the sink closed the connection, which tells the server that there is nothing more to read.
+            log.info("The loopback server received %,d records".formatted(server.awaitRecordsReceived()));
+        }
+    }
+
+    private static void run(String name, ByteSink sink) throws Exception {
+        var buffer = new OffHeapMultiChannelBuffer(NUM_CHANNELS, SEGMENTS_PER_CHANNEL, SEGMENT_SIZE, sink);
+
+        Instant start = Instant.now();
+        for (int i = 1; i <= TOTAL_RECORDS; i++) {
+            buffer.write("record-" + i);
+        }
+        buffer.close();
+        Duration elapsed = Duration.between(start, Instant.now());
+
+        double seconds = elapsed.toNanos() / 1_000_000_000.0;
+        log.info("=== Results (%s sink) ===".formatted(name));
+        log.info("Total bytes written: %,d".formatted(sink.bytesWritten()));
+        log.info("Total flush operations (gathering writes): %,d".formatted(sink.flushOperations()));
+        log.info("Total execution time: %s".formatted(elapsed));
+        log.info("Throughput: %,.0f records/s, %,.1f MiB/s".formatted(
+                TOTAL_RECORDS / seconds, sink.bytesWritten() / seconds / (1024 * 1024)));
+    }
+
+    /**
+     * Count the length-prefixed frames in a file to check that every record made it.
+     */
+    private static long countRecordsInFile(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var frames = new FrameCounter();
+            var readBuffer = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+            while (channel.read(readBuffer) != -1) {
+                readBuffer.flip();
+                frames.consume(readBuffer);
+                readBuffer.clear();
+            }
+            return frames.count();
+        }
+    }
+
+    /**
+     * A destination for flushed bytes. Implementations must write all the remaining bytes of all the given buffers
+     * before returning.
+     */
+    interface ByteSink extends AutoCloseable {
+        void write(ByteBuffer[] segments, int length) throws IOException;
+
+        long bytesWritten();
+
+        long flushOperations();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Writes each flush to the given channel with gathering writes. A gathering write may not write everything in one
+     * call, so it loops until the buffers are drained. The method is synchronized so that concurrent flushes from
+     * different channels never interleave their bytes.
+     */
+    abstract static class GatheringSink implements ByteSink {
+        private final GatheringByteChannel channel;
+        private long bytesWritten = 0;
+        private long flushOperations = 0;
+
+        GatheringSink(GatheringByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer[] segments, int length) throws IOException {
+            long remaining = 0;
+            for (int i = 0; i < length; i++) {
+                remaining += segments[i].remaining();
+            }
+            bytesWritten += remaining;
+            while (remaining > 0) {
+                remaining -= channel.write(segments, 0, length);
+            }
+            flushOperations++;
+        }
+
+        @Override
+        public synchronized long bytesWritten() { return bytesWritten; }
+
+        @Override
+        public synchronized long flushOperations() { return flushOperations; }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class FileSink extends GatheringSink {
+        FileSink(Path file) throws IOException {
+            super(FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+    }
+
+    static class SocketSink extends GatheringSink {
+        SocketSink(InetSocketAddress address) throws IOException {
+            super(SocketChannel.open(address));
+        }
+    }
+
+    /**
+     * A stand-in for a remote database that accepts one connection on the loopback interface and counts the frames it
+     * receives.
+     */
+    static class LoopbackServer implements AutoCloseable {
+        private final ServerSocketChannel serverChannel;
+        private final Future<Long> recordsReceived;
+        private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        LoopbackServer() throws IOException {
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            recordsReceived = executor.submit(() -> {
+                try (SocketChannel connection = serverChannel.accept()) {
+                    var frames = new FrameCounter();
+                    var readBuffer = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+                    while (connection.read(readBuffer) != -1) {
+                        readBuffer.flip();
+                        frames.consume(readBuffer);
+                        readBuffer.clear();
+                    }
+                    return frames.count();
+                }
+            });
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        /**
+         * Wait for the client to close the connection and return how many records the server received.
+         */
+        long awaitRecordsReceived() throws InterruptedException, ExecutionException {
+            return recordsReceived.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Counts length-prefixed frames in a stream of bytes that arrives in arbitrary chunks. A frame, and even its 4-byte
+     * length prefix, may be split across chunks.
+     */
+    static class FrameCounter {
+        private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        private int bodyRemaining = 0;
+        private long count = 0;
+
+        void consume(ByteBuffer chunk) {
+            while (chunk.hasRemaining()) {
+                if (bodyRemaining > 0) {
+                    int skip = Math.min(bodyRemaining, chunk.remaining());
+                    chunk.position(chunk.position() + skip);
+                    bodyRemaining -= skip;
+                    continue;
+                }
+                header.put(chunk.get());
+                if (!header.hasRemaining()) {
+                    bodyRemaining = header.flip().getInt();
+                    header.clear();
+                    count++;
+                }
+            }
+        }
+
+        long count() { return count; }
+    }
+
+    /**
+     * A multi-channel buffer whose channels are direct byte buffers.
+     * <p>
+     * Like {@code MultiChannelBuffer}, writes switch to the next channel while the previous one flushes, and the
+     * program only blocks when the next channel is still flushing. Records are framed into the active channel's
+     * segments as they are written. A frame may straddle two segments; the gathering write on the other end puts the
+     * segments back together into one contiguous stream of bytes.
+     */
+    static class OffHeapMultiChannelBuffer {
+        private final ByteSink sink;
+        private final ExecutorService flushExecutor;
+        private final Channel[] channels;
+        private final int channelCapacity;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer scratch;
+        private int activeChannelIndex = 0;
+        private boolean closed = false;
+
+        OffHeapMultiChannelBuffer(int numChannels, int segmentsPerChannel, int segmentSize, ByteSink sink) {
+            this.sink = sink;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.channelCapacity = segmentsPerChannel * segmentSize;
+            this.channels = new Channel[numChannels];
+            for (int i = 0; i < numChannels; i++) {
+                channels[i] = new Channel(segmentsPerChannel, segmentSize);
+            }
+            // Records are encoded into this reusable scratch buffer first, because the length prefix has to be
+            // written before the bytes and the encoded length isn't known until the record is encoded.
+            this.scratch = ByteBuffer.allocateDirect(segmentSize);
+        }
+
+        synchronized void write(CharSequence record) throws InterruptedException {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+
+            scratch.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(record), scratch, true);
+            if (result.isOverflow() || encoder.flush(scratch).isOverflow()) {
+                throw new IllegalArgumentException("The record is larger than the maximum record size of %d bytes".formatted(
+                        scratch.capacity()));
+            }
+            scratch.flip();
+            int frameLength = Integer.BYTES + scratch.remaining();
+
+            Channel active = channels[activeChannelIndex];
+            if (active.size + frameLength > channelCapacity) {
+                switchChannels();
+                active = channels[activeChannelIndex];
+            }
+            active.putInt(scratch.remaining());
+            active.put(scratch);
+        }
+
+        /**
+         * Kick off an asynchronous flush of the active channel and switch to the next channel, blocking if the next
+         * channel is still flushing.
+         */
+        private void switchChannels() throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            int used = active.flipForFlush();
+            active.pendingFlush = flushExecutor.submit(() -> {
+                sink.write(active.segments, used);
+                active.reset();
+                return null;
+            });
+
+            activeChannelIndex = (activeChannelIndex + 1) % channels.length;
+            await(channels[activeChannelIndex]);
+        }
+
+        synchronized void close() throws InterruptedException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            Channel active = channels[activeChannelIndex];
+            if (active.size > 0) {
+                int used = active.flipForFlush();
+                try {
+                    sink.write(active.segments, used);
+                } catch (IOException e) {
+                    throw new RuntimeException("Flush failed", e);
+                }
+                active.reset();
+            }
+
+            for (Channel channel : channels) {
+                await(channel);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static void await(Channel channel) throws InterruptedException {
+            if (channel.pendingFlush == null) {
+                return;
+            }
+            try {
+                channel.pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+            channel.pendingFlush = null;
+        }
+
+        static class Channel {
+            final ByteBuffer[] segments;
+            int current = 0;
+            int size = 0;
+            Future<Void> pendingFlush = null;
+
+            Channel(int segmentCount, int segmentSize) {
+                segments = new ByteBuffer[segmentCount];
+                for (int i = 0; i < segmentCount; i++) {
+                    segments[i] = ByteBuffer.allocateDirect(segmentSize);
+                }
+            }
+
+            void putInt(int value) {
+                if (segments[current].remaining() >= Integer.BYTES) {
+                    segments[current].putInt(value);
+                    size += Integer.BYTES;
+                } else {
+                    for (int shift = 24; shift >= 0; shift -= 8) {
+                        putByte((byte) (value >>> shift));
+                    }
+                }
+            }
+
+            void put(ByteBuffer source) {
+                while (source.hasRemaining()) {
+                    if (!segments[current].hasRemaining()) {
+                        current++;
+                    }
+                    ByteBuffer segment = segments[current];
+                    int count = Math.min(segment.remaining(), source.remaining());
+                    segment.put(segment.position(), source, source.position(), count);
+                    segment.position(segment.position() + count);
+                    source.position(source.position() + count);
+                    size += count;
+                }
+            }
+
+            private void putByte(byte b) {
+                if (!segments[current].hasRemaining()) {
+                    current++;
+                }
+                segments[current].put(b);
+                size++;
+            }
+
+            /**
+             * Flip the used segments for reading and return how many there are.
+             */
+            int flipForFlush() {
+                int used = segments[current].position() == 0 ? current : current + 1;
+                for (int i = 0; i < used; i++) {
+                    segments[i].flip();
+                }
+                return used;
+            }
+
+            void reset() {
+                for (ByteBuffer segment : segments) {
+                    segment.clear();
+                }
+                current = 0;
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Demonstrates key-partitioned buffering: records for the same key always reach the database in order, while
+ * different partitions flush in parallel.
+ * <p>
+ * {@code MultiChannelBuffer} has no notion of a record key. Its channels flush concurrently, so two records for the same
+ * entity can land in different channels and reach the database out of order. The partitioned buffer hashes each record's
+ * key to a partition. Each partition has its own buffer and its own chain of flushes: a partition's next batch is only
+ * flushed after its previous batch is done. Different partitions don't wait on each other at all.
+ * <p>
+ * The simulated database checks that every key's sequence numbers arrive in increasing order.
+ */
+public class PartitionedChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int[] PARTITION_COUNTS = {1, 2, 4, 8, 16};
+    private static final int TOTAL_RECORDS = 10_000;
+    private static final int NUM_KEYS = 1_000;
+    private static final int NUM_PRODUCERS = 4;
+    private static final int BUFFER_SIZE = 100;
+    private static final int MAX_IN_FLIGHT_PER_PARTITION = 2;
+    private static final Duration NETWORK_LATENCY = Duration.ofMillis(50);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Key-Partitioned Buffered Write Demo ===");
+        log.info("Total records: %,d, Keys: %,d, Producers: %d, Buffer size: %d, Network latency: %dms".formatted(
+                TOTAL_RECORDS, NUM_KEYS, NUM_PRODUCERS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("");
+
+        var results = new ArrayList<String>();
+        for (int partitions : PARTITION_COUNTS) {
+            var database = new OrderCheckingDatabase(NETWORK_LATENCY);
+            var buffer = new PartitionedBuffer(partitions, BUFFER_SIZE, MAX_IN_FLIGHT_PER_PARTITION, database);
+
+            long start = System.nanoTime();
+            var producers = new ArrayList<Thread>();
+            for (int p = 0; p < NUM_PRODUCERS; p++) {
+                int producer = p;
+                producers.add(Thread.ofPlatform().name("producer-" + p).start(() -> produce(producer, buffer)));
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            buffer.close();
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+            if (database.totalRecordsWritten() != TOTAL_RECORDS) {
+                throw new IllegalStateException("Expected %d records but the database received %d".formatted(
+                        TOTAL_RECORDS, database.totalRecordsWritten()));
+            }
+            results.add("%10d | %,10.0f | %,10d | %16d".formatted(
+                    partitions, TOTAL_RECORDS / seconds, database.totalFlushOperations(), database.orderingViolations()));
+        }
+
+        log.info("=== Results ===");
+        log.info("%10s | %10s | %10s | %16s".formatted("partitions", "rec/s", "flushes", "order violations"));
+        for (String result : results) {
+            log.info(result);
+        }
+    }
+
+    /**
+     * Each producer owns a disjoint set of keys and writes each key's records in sequence order. This models per-entity
+     * writes that must stay ordered.
+     */
+    private static void produce(int producer, PartitionedBuffer buffer) {
+        int perProducer = TOTAL_RECORDS / NUM_PRODUCERS;
+        try {
+            for (int i = 0; i < perProducer; i++) {
+                int keyIndex = (i * NUM_PRODUCERS + producer) % NUM_KEYS;
+                long sequence = i / (NUM_KEYS / NUM_PRODUCERS);
+                buffer.write(new KeyedRecord("entity-" + keyIndex, sequence, "value-" + i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    record KeyedRecord(String key, long sequence, String value) {}
+
+    /**
+     * A simulated database that records the last sequence number it has seen for every key and counts any record that
+     * arrives with a sequence number lower than one it has already seen.
+     */
+    static class OrderCheckingDatabase {
+        private final Duration latency;
+        private final Map<String, Long> lastSequenceByKey = new ConcurrentHashMap<>();
+        private final AtomicLong totalRecordsWritten = new AtomicLong();
+        private final AtomicLong totalFlushOperations = new AtomicLong();
+        private final AtomicLong orderingViolations = new AtomicLong();
+
+        OrderCheckingDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        void write(List<KeyedRecord> records) throws InterruptedException {
+            Thread.sleep(latency);
+            for (KeyedRecord record : records) {
+                Long previous = lastSequenceByKey.put(record.key(), record.sequence());
+                if (previous != null && previous > record.sequence()) {
+                    orderingViolations.incrementAndGet();
+                }
+            }
+            totalRecordsWritten.addAndGet(records.size());
+            totalFlushOperations.incrementAndGet();
+        }
+
+        long totalRecordsWritten() { return totalRecordsWritten.get(); }
+        long totalFlushOperations() { return totalFlushOperations.get(); }
+        long orderingViolations() { return orderingViolations.get(); }
+    }
+
+    /**
+     * A buffer that routes each record to a partition by the hash of its key.
+     * <p>
+     * Each partition is locked on its own, so producers writing to different partitions never contend. A partition
+     * keeps the futures of its outstanding flushes in order. Each new flush is chained onto the previous one, which
+     * keeps a key's batches in order. A producer only blocks when its partition already has the maximum number of
+     * flushes in flight.
+     */
+    static class PartitionedBuffer {
+        private final int bufferCapacity;
+        private final int maxInFlight;
+        private final OrderCheckingDatabase database;
+        private final ExecutorService flushExecutor;
+        private final Partition[] partitions;
+
+        PartitionedBuffer(int numPartitions, int bufferCapacity, int maxInFlight, OrderCheckingDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.maxInFlight = maxInFlight;
+            this.database = database;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.partitions = new Partition[numPartitions];
+            for (int i = 0; i < numPartitions; i++) {
+                partitions[i] = new Partition();
+            }
+        }
+
+        void write(KeyedRecord record) throws InterruptedException {
+            Partition partition = partitions[Math.floorMod(record.key().hashCode(), partitions.length)];
+            synchronized (partition) {
+                partition.buffer.add(record);
+                if (partition.buffer.size() >= bufferCapacity) {
+                    flush(partition);
+                }
+            }
+        }
+
+        /**
+         * Chain a flush of the partition's buffer onto its previous flush. Must be called while holding the
+         * partition's lock.
+         */
+        private void flush(Partition partition) throws InterruptedException {
+            while (partition.inFlight.size() >= maxInFlight) {
+                await(partition.inFlight.removeFirst());
+            }
+            partition.inFlight.removeIf(CompletableFuture::isDone);
+
+            List<KeyedRecord> toFlush = partition.buffer;
+            partition.buffer = new ArrayList<>(bufferCapacity);
+            CompletableFuture<Void> previous = partition.inFlight.isEmpty()
+                    ? CompletableFuture.completedFuture(null)
+                    : partition.inFlight.getLast();
+            partition.inFlight.addLast(previous.thenRunAsync(() -> {
+                try {
+                    database.write(toFlush);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }, flushExecutor));
+        }
+
+        void close() throws InterruptedException {
+            for (Partition partition : partitions) {
+                synchronized (partition) {
+                    if (!partition.buffer.isEmpty()) {
+                        flush(partition);
+                    }
+                    while (!partition.inFlight.isEmpty()) {
+                        await(partition.inFlight.removeFirst());
+                    }
+                }
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static void await(CompletableFuture<Void> flush) throws InterruptedException {
+            try {
+                flush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+        }
+
+        static class Partition {
+            List<KeyedRecord> buffer = new ArrayList<>();
+            final ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        }
+    }
+}
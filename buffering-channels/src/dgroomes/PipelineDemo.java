@@ -0,0 +1,415 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Demonstrates a staged pipeline in front of the multi-channel buffer: produce, then transform, then buffer and flush.
+ * <p>
+ * In {@code MultiChannelDemo}, each record's processing time is spent on the producer thread right before the call to
+ * {@code write}, so the processing of one record never overlaps the processing of another. Here the work is split into
+ * three stages connected by bounded queues, each with a configurable number of threads:
+ * <ol>
+ *     <li>The produce stage creates raw records.</li>
+ *     <li>The transform stage turns a raw record into its serialized form.</li>
+ *     <li>The buffer stage writes serialized records into the multi-channel buffer.</li>
+ * </ol>
+ * <p>
+ * The transform threads finish records out of order, but the buffer must see them in order. So for every record, the
+ * produce stage puts a future into an ordered queue before handing the record to the transform stage. The transform
+ * thread completes the future, and the buffer stage takes futures from the ordered queue and waits for each. The
+ * ordered queue is bounded too, which limits how far ahead of the buffer stage the transform stage can get.
+ * <p>
+ * With more than one thread, the produce and buffer stages keep the order with a {@link Sequencer}. Every record has a
+ * sequence number. A produce thread creates its record whenever it likes, but waits for its record's turn before it
+ * puts it into the queues. A buffer thread waits for the record's future whenever it likes, but waits for the record's
+ * turn before it writes it to the buffer.
+ * <p>
+ * Each stage reports its utilization (the fraction of its threads' time spent working rather than waiting on a queue),
+ * and a sampler reports the depth of each queue. The bottleneck stage is the one that is busy all the time while the
+ * queue in front of it is full.
+ */
+public class PipelineDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int TOTAL_RECORDS = 2_000;
+    private static final Parallelism[] PARALLELISMS = {
+            new Parallelism(1, 1, 1),
+            new Parallelism(1, 2, 1),
+            new Parallelism(1, 4, 1),
+            new Parallelism(1, 8, 1),
+            new Parallelism(2, 8, 2),
+    };
+    private static final int QUEUE_CAPACITY = 64;
+    private static final Duration PRODUCE_TIME = Duration.ofNanos(250_000);
+    private static final Duration TRANSFORM_TIME = Duration.ofMillis(2);
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 100;
+    private static final Duration NETWORK_LATENCY = Duration.ofMillis(100);
+    private static final Duration SAMPLE_INTERVAL = Duration.ofMillis(10);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Pipelined Record Processing Demo ===");
+        log.info("Total records: %,d, Produce time: %.2fms, Transform time: %dms, Queue capacity: %d".formatted(
+                TOTAL_RECORDS, PRODUCE_TIME.toNanos() / 1e6, TRANSFORM_TIME.toMillis(), QUEUE_CAPACITY));
+        log.info("Channels: %d, Buffer size: %d, Network latency: %dms".formatted(
+                NUM_CHANNELS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("");
+
+        var results = new ArrayList<String>();
+        double serialSeconds = runSerial();
+        results.add("%-14s | %8.2fs | %,7.0f | %7s | %9s | %7s | %19s | %19s".formatted(
+                "serial", serialSeconds, TOTAL_RECORDS / serialSeconds, "-", "-", "-", "-", "-"));
+        for (Parallelism parallelism : PARALLELISMS) {
+            log.info("Running the pipeline with %d produce, %d transform and %d buffer threads...".formatted(
+                    parallelism.produce(), parallelism.transform(), parallelism.buffer()));
+            var stats = runPipeline(parallelism);
+            results.add("%-14s | %8.2fs | %,7.0f | %6.0f%% | %8.0f%% | %6.0f%% | %10.1f / %6d | %10.1f / %6d".formatted(
+                    "pipeline %d/%d/%d".formatted(parallelism.produce(), parallelism.transform(), parallelism.buffer()),
+                    stats.seconds(), TOTAL_RECORDS / stats.seconds(),
+                    stats.produceUtilization() * 100, stats.transformUtilization() * 100,
+                    stats.bufferUtilization() * 100, stats.workQueue().average(), stats.workQueue().max(),
+                    stats.orderedQueue().average(), stats.orderedQueue().max()));
+        }
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%-14s | %9s | %7s | %7s | %9s | %7s | %19s | %19s".formatted(
+                "mode", "time", "rec/s", "produce", "transform", "buffer", "work queue avg/max",
+                "order queue avg/max"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("A pipeline's mode shows its produce/transform/buffer threads. The produce, transform and buffer columns");
+        log.info("are each stage's utilization.");
+    }
+
+    /**
+     * The original approach: produce, transform and write each record on one thread.
+     */
+    private static double runSerial() throws InterruptedException {
+        var database = new OrderCheckingDatabase(NETWORK_LATENCY);
+        var buffer = new MultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, database);
+        long start = System.nanoTime();
+        for (int i = 0; i < TOTAL_RECORDS; i++) {
+            buffer.write(transform(produce(i)));
+        }
+        buffer.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        database.verify(TOTAL_RECORDS);
+        return seconds;
+    }
+
+    private static RawRecord produce(int sequence) throws InterruptedException {
+        Thread.sleep(PRODUCE_TIME);
+        return new RawRecord(sequence, "reading-" + sequence);
+    }
+
+    private static String transform(RawRecord record) throws InterruptedException {
+        Thread.sleep(TRANSFORM_TIME);
+        return "{\"sequence\":%d,\"payload\":\"%s\"}".formatted(record.sequence(), record.payload());
+    }
+
+    record RawRecord(int sequence, String payload) {}
+
+    /**
+     * The number of threads in each stage.
+     */
+    record Parallelism(int produce, int transform, int buffer) {}
+
+    /**
+     * A record on its way to the transform stage, with the future that the buffer stage is waiting on.
+     */
+    record TransformTask(RawRecord record, CompletableFuture<String> result) {}
+
+    /**
+     * A record's place in the ordered queue.
+     */
+    record Ordered(int sequence, CompletableFuture<String> result) {}
+
+    private static final TransformTask STOP = new TransformTask(null, null);
+    private static final Ordered END = new Ordered(-1, null);
+
+    private static PipelineStats runPipeline(Parallelism parallelism) throws Exception {
+        var database = new OrderCheckingDatabase(NETWORK_LATENCY);
+        var buffer = new MultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, database);
+        var workQueue = new ArrayBlockingQueue<TransformTask>(QUEUE_CAPACITY);
+        var orderedQueue = new ArrayBlockingQueue<Ordered>(QUEUE_CAPACITY);
+        var nextSequence = new AtomicInteger();
+        var produceTurns = new Sequencer();
+        var bufferTurns = new Sequencer();
+        var produceBusy = new LongAdder();
+        var transformBusy = new LongAdder();
+        var bufferBusy = new LongAdder();
+
+        var workQueueDepth = new DepthSampler(workQueue);
+        var orderedQueueDepth = new DepthSampler(orderedQueue);
+        var sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            workQueueDepth.sample();
+            orderedQueueDepth.sample();
+        }, 0, SAMPLE_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
+
+        long start = System.nanoTime();
+        var produceThreads = new ArrayList<Thread>();
+        var transformThreads = new ArrayList<Thread>();
+        var bufferThreads = new ArrayList<Thread>();
+
+        for (int t = 0; t < parallelism.produce(); t++) {
+            produceThreads.add(Thread.ofPlatform().name("produce-" + t).start(() -> {
+                try {
+                    while (true) {
+                        int sequence = nextSequence.getAndIncrement();
+                        if (sequence >= TOTAL_RECORDS) {
+                            return;
+                        }
+                        long workStart = System.nanoTime();
+                        RawRecord record = produce(sequence);
+                        produceBusy.add(System.nanoTime() - workStart);
+
+                        // The future goes into the ordered queue first, so the buffer stage sees records in order.
+                        var result = new CompletableFuture<String>();
+                        produceTurns.awaitTurn(sequence);
+                        orderedQueue.put(new Ordered(sequence, result));
+                        workQueue.put(new TransformTask(record, result));
+                        produceTurns.advance();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        for (int t = 0; t < parallelism.transform(); t++) {
+            transformThreads.add(Thread.ofPlatform().name("transform-" + t).start(() -> {
+                try {
+                    while (true) {
+                        TransformTask task = workQueue.take();
+                        if (task == STOP) {
+                            return;
+                        }
+                        long workStart = System.nanoTime();
+                        String serialized = transform(task.record());
+                        transformBusy.add(System.nanoTime() - workStart);
+                        task.result().complete(serialized);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        for (int t = 0; t < parallelism.buffer(); t++) {
+            bufferThreads.add(Thread.ofPlatform().name("buffer-" + t).start(() -> {
+                try {
+                    while (true) {
+                        Ordered ordered = orderedQueue.take();
+                        if (ordered == END) {
+                            return;
+                        }
+                        String serialized = ordered.result().join();
+                        bufferTurns.awaitTurn(ordered.sequence());
+                        long workStart = System.nanoTime();
+                        buffer.write(serialized);
+                        bufferBusy.add(System.nanoTime() - workStart);
+                        bufferTurns.advance();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        // Once every record is in the queues, tell each transform and buffer thread to stop after the records ahead of
+        // the signal.
+        join(produceThreads);
+        for (int t = 0; t < parallelism.buffer(); t++) {
+            orderedQueue.put(END);
+        }
+        for (int t = 0; t < parallelism.transform(); t++) {
+            workQueue.put(STOP);
+        }
+        join(transformThreads);
+        join(bufferThreads);
+        long workStart = System.nanoTime();
+        buffer.close();
+        bufferBusy.add(System.nanoTime() - workStart);
+
+        long elapsed = System.nanoTime() - start;
+        sampler.shutdownNow();
+        database.verify(TOTAL_RECORDS);
+
+        return new PipelineStats(elapsed / 1e9,
+                (double) produceBusy.sum() / elapsed / parallelism.produce(),
+                (double) transformBusy.sum() / elapsed / parallelism.transform(),
+                (double) bufferBusy.sum() / elapsed / parallelism.buffer(),
+                workQueueDepth.result(), orderedQueueDepth.result());
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    record PipelineStats(double seconds, double produceUtilization, double transformUtilization,
+                         double bufferUtilization, QueueDepth workQueue, QueueDepth orderedQueue) {}
+
+    record QueueDepth(double average, int max) {}
+
+    /**
+     * Lets the threads of a stage take turns in sequence order. A thread waits for its record's turn, does the part of
+     * its work that must happen in order, and then passes the turn to the next record.
+     */
+    static class Sequencer {
+        private int next = 0;
+
+        synchronized void awaitTurn(int sequence) throws InterruptedException {
+            while (next != sequence) {
+                wait();
+            }
+        }
+
+        synchronized void advance() {
+            next++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Samples the size of a queue. Only the sampler thread calls {@link #sample()}.
+     */
+    static class DepthSampler {
+        private final BlockingQueue<?> queue;
+        private long samples = 0;
+        private long total = 0;
+        private int max = 0;
+
+        DepthSampler(BlockingQueue<?> queue) {
+            this.queue = queue;
+        }
+
+        synchronized void sample() {
+            int depth = queue.size();
+            samples++;
+            total += depth;
+            max = Math.max(max, depth);
+        }
+
+        synchronized QueueDepth result() {
+            return new QueueDepth(samples == 0 ? 0 : (double) total / samples, max);
+        }
+    }
+
+    /**
+     * A simulated database that checks that records arrive in sequence order.
+     */
+    static class OrderCheckingDatabase {
+        private final Duration latency;
+        private int totalRecordsWritten = 0;
+        private int outOfOrder = 0;
+        private int lastSequence = -1;
+
+        OrderCheckingDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        synchronized void write(List<String> records) throws InterruptedException {
+            Thread.sleep(latency);
+            for (String record : records) {
+                int sequence = Integer.parseInt(record.substring(12, record.indexOf(',')));
+                if (sequence < lastSequence) {
+                    outOfOrder++;
+                }
+                lastSequence = sequence;
+            }
+            totalRecordsWritten += records.size();
+        }
+
+        synchronized void verify(int expectedRecords) {
+            if (totalRecordsWritten != expectedRecords || outOfOrder != 0) {
+                throw new IllegalStateException("Expected %d records in order but got %d records with %d out of order"
+                        .formatted(expectedRecords, totalRecordsWritten, outOfOrder));
+            }
+        }
+    }
+
+    /**
+     * The multi-channel buffer from {@code MultiChannelDemo}, without the linger deadline.
+     * <p>
+     * The database is synchronized and each flush waits for the previous channel's flush before it starts, so batches
+     * reach the database in the order they were filled.
+     */
+    static class MultiChannelBuffer {
+        private final int bufferCapacity;
+        private final OrderCheckingDatabase database;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final List<List<String>> buffers = new ArrayList<>();
+        private final List<Future<Void>> pendingFlushes = new ArrayList<>();
+        private Future<Void> lastFlush = null;
+        private int activeChannelIndex = 0;
+
+        MultiChannelBuffer(int numChannels, int bufferCapacity, OrderCheckingDatabase database) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            for (int i = 0; i < numChannels; i++) {
+                buffers.add(new ArrayList<>(bufferCapacity));
+                pendingFlushes.add(null);
+            }
+        }
+
+        synchronized void write(String record) throws InterruptedException {
+            List<String> active = buffers.get(activeChannelIndex);
+            active.add(record);
+            if (active.size() < bufferCapacity) {
+                return;
+            }
+
+            buffers.set(activeChannelIndex, new ArrayList<>(bufferCapacity));
+            Future<Void> previous = lastFlush;
+            lastFlush = flushExecutor.submit(() -> {
+                await(previous);
+                database.write(active);
+                return null;
+            });
+            pendingFlushes.set(activeChannelIndex, lastFlush);
+
+            int nextChannel = (activeChannelIndex + 1) % buffers.size();
+            await(pendingFlushes.get(nextChannel));
+            pendingFlushes.set(nextChannel, null);
+            activeChannelIndex = nextChannel;
+        }
+
+        synchronized void close() throws InterruptedException {
+            for (Future<Void> pendingFlush : pendingFlushes) {
+                await(pendingFlush);
+            }
+            List<String> active = buffers.get(activeChannelIndex);
+            if (!active.isEmpty()) {
+                database.write(active);
+                active.clear();
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static void await(Future<Void> pendingFlush) throws InterruptedException {
+            if (pendingFlush == null) {
+                return;
+            }
+            try {
+                pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+        }
+    }
+}
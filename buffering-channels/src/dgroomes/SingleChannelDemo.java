@@ -1,9 +1,20 @@
 package dgroomes;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 /**
@@ -19,19 +30,33 @@ public class SingleChannelDemo {
     private static final int TOTAL_RECORDS = 20;
     private static final int BUFFER_SIZE = 5;
     private static final Duration NETWORK_LATENCY = Duration.ofMillis(500);
+    private static final Duration NETWORK_JITTER = Duration.ofMillis(100);
+    private static final int NETWORK_BANDWIDTH_BYTES_PER_SECOND = 1024 * 1024;
     private static final Duration RECORD_PROCESSING_TIME = Duration.ofMillis(50);
+    private static final Duration MAX_LINGER = Duration.ofMillis(400);
+    private static final int LULL_AFTER_RECORD = 12;
+    private static final Duration LULL = Duration.ofSeconds(1);
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
 
         log.info("=== Single-Channel Buffered Write Demo ===");
         log.info("This demonstrates HEAD-OF-LINE BLOCKING.");
-        log.info("Total records: %d, Buffer size: %d, Network latency: %dms".formatted(
-                TOTAL_RECORDS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+        log.info("Total records: %d, Buffer size: %d, Network latency: %dms, Max linger: %dms".formatted(
+                TOTAL_RECORDS, BUFFER_SIZE, NETWORK_LATENCY.toMillis(), MAX_LINGER.toMillis()));
+        boolean loopback = List.of(args).contains("--loopback");
+        if (loopback) {
+            log.info("Sink: loopback TCP database with %dms jitter and %,d bytes/s bandwidth".formatted(
+                    NETWORK_JITTER.toMillis(), NETWORK_BANDWIDTH_BYTES_PER_SECOND));
+        } else {
+            log.info("Sink: simulated database (run with --loopback to use a loopback TCP database)");
+        }
         log.info("");
 
-        var database = new SimulatedDatabase(NETWORK_LATENCY);
-        var buffer = new SingleChannelBuffer(BUFFER_SIZE, database);
+        Sink database = loopback
+                ? new LoopbackDatabase(NETWORK_LATENCY, NETWORK_JITTER, NETWORK_BANDWIDTH_BYTES_PER_SECOND)
+                : new SimulatedDatabase(NETWORK_LATENCY);
+        var buffer = new SingleChannelBuffer(BUFFER_SIZE, MAX_LINGER, database);
 
         Instant start = Instant.now();
 
@@ -39,9 +64,18 @@ public class SingleChannelDemo {
             Thread.sleep(RECORD_PROCESSING_TIME);
             log.info("Produced record #%d".formatted(i));
             buffer.write("record-" + i);
+
+            if (i == LULL_AFTER_RECORD) {
+                log.info("Traffic lull for %dms. The linger deadline will flush the partially filled buffer.".formatted(
+                        LULL.toMillis()));
+                Thread.sleep(LULL);
+            }
         }
 
-        buffer.flush();
+        buffer.close();
+        if (database instanceof LoopbackDatabase loopbackDatabase) {
+            loopbackDatabase.close();
+        }
 
         Instant end = Instant.now();
         Duration elapsed = Duration.between(start, end);
@@ -50,12 +84,29 @@ public class SingleChannelDemo {
         log.info("=== Results ===");
         log.info("Total records written: %d".formatted(database.totalRecordsWritten()));
         log.info("Total flush operations: %d".formatted(database.totalFlushOperations()));
+        if (database instanceof LoopbackDatabase loopbackDatabase) {
+            log.info("Total bytes sent over loopback: %,d".formatted(loopbackDatabase.totalBytesSent()));
+        }
+        log.info("Size-triggered flushes: %d, Time-triggered flushes: %d".formatted(
+                buffer.sizeTriggeredFlushes(), buffer.timeTriggeredFlushes()));
         log.info("Total execution time: %s".formatted(elapsed));
         log.info("");
         log.info("Notice how the program blocks during each flush, wasting time that could be spent buffering.");
     }
 
-    static class SimulatedDatabase {
+    /**
+     * Where a buffer sends its batches. {@link SimulatedDatabase} only sleeps, while {@link LoopbackDatabase} does real
+     * socket I/O.
+     */
+    interface Sink {
+        void write(List<String> records) throws InterruptedException;
+
+        int totalRecordsWritten();
+
+        int totalFlushOperations();
+    }
+
+    static class SimulatedDatabase implements Sink {
         private final Duration latency;
         private int totalRecordsWritten = 0;
         private int totalFlushOperations = 0;
@@ -65,7 +116,8 @@ public class SingleChannelDemo {
             this.latency = latency;
         }
 
-        void write(List<String> records) throws InterruptedException {
+        @Override
+        public void write(List<String> records) throws InterruptedException {
             log.info("  [DB] Flushing %d records over the network...".formatted(records.size()));
             Thread.sleep(latency);
             totalRecordsWritten += records.size();
@@ -73,34 +125,273 @@ public class SingleChannelDemo {
             log.info("  [DB] Flush complete.");
         }
 
-        int totalRecordsWritten() { return totalRecordsWritten; }
-        int totalFlushOperations() { return totalFlushOperations; }
+        @Override
+        public int totalRecordsWritten() { return totalRecordsWritten; }
+        @Override
+        public int totalFlushOperations() { return totalFlushOperations; }
     }
 
+    /**
+     * A buffer that flushes when it is full (size-triggered) or when its oldest record has waited for the max linger
+     * duration (time-triggered). The linger deadline is driven by a scheduler so that it fires even when no more
+     * records are written. Because the scheduler thread can flush, the methods are synchronized.
+     */
     static class SingleChannelBuffer {
         private final int capacity;
-        private final SimulatedDatabase database;
-        private final List<String> buffer = new ArrayList<>();
+        private final Duration maxLinger;
+        private final Sink database;
+        private final List<String> buffer;
+        private final ScheduledExecutorService lingerScheduler = Executors.newSingleThreadScheduledExecutor();
+        private ScheduledFuture<?> lingerDeadline = null;
+        private int batch = 0;
+        private int sizeTriggeredFlushes = 0;
+        private int timeTriggeredFlushes = 0;
         private static final Logger log = Logger.getAnonymousLogger();
 
-        SingleChannelBuffer(int capacity, SimulatedDatabase database) {
+        SingleChannelBuffer(int capacity, Duration maxLinger, Sink database) {
             this.capacity = capacity;
+            this.maxLinger = maxLinger;
             this.database = database;
+            this.buffer = new ArrayList<>(capacity);
         }
 
-        void write(String record) throws InterruptedException {
+        synchronized void write(String record) throws InterruptedException {
+            if (buffer.isEmpty()) {
+                int currentBatch = batch;
+                lingerDeadline = lingerScheduler.schedule(() -> {
+                    lingerExpired(currentBatch);
+                    return null;
+                }, maxLinger.toNanos(), TimeUnit.NANOSECONDS);
+            }
+
             buffer.add(record);
             if (buffer.size() >= capacity) {
                 log.info("Buffer full, flushing... (BLOCKING - cannot accept more records!)");
+                sizeTriggeredFlushes++;
                 flush();
             }
         }
 
-        void flush() throws InterruptedException {
+        /**
+         * Called by the scheduler when a batch has lingered for the max linger duration. Skip it if the batch was
+         * already flushed in the meantime.
+         */
+        private synchronized void lingerExpired(int expiredBatch) throws InterruptedException {
+            if (batch != expiredBatch || buffer.isEmpty()) {
+                return;
+            }
+
+            log.info("Buffer lingered for %dms with %d records, flushing... (BLOCKING - cannot accept more records!)".formatted(
+                    maxLinger.toMillis(), buffer.size()));
+            timeTriggeredFlushes++;
+            flush();
+        }
+
+        synchronized void flush() throws InterruptedException {
             if (!buffer.isEmpty()) {
-                database.write(new ArrayList<>(buffer));
+                lingerDeadline.cancel(false);
+                batch++;
+                // The flush is synchronous, so the buffer can be handed to the database directly instead of copied.
+                database.write(buffer);
                 buffer.clear();
             }
         }
+
+        synchronized int sizeTriggeredFlushes() { return sizeTriggeredFlushes; }
+        synchronized int timeTriggeredFlushes() { return timeTriggeredFlushes; }
+
+        /**
+         * Flush any remaining records and stop the linger scheduler.
+         */
+        synchronized void close() throws InterruptedException {
+            lingerScheduler.shutdownNow();
+            flush();
+        }
+    }
+
+    /**
+     * A stand-in database that sends every batch over a real TCP connection to an in-process server on the loopback
+     * interface, so a flush pays for serialization, socket writes and system calls and not only for a sleep.
+     * <p>
+     * A batch is sent as one frame: the frame's length, the record count, and then each record as a length-prefixed
+     * UTF-8 string. The server replies with the record count once it has "committed" the batch. Connections are pooled,
+     * and a new one is opened whenever concurrent flushes need more.
+     */
+    static class LoopbackDatabase implements Sink, AutoCloseable {
+        private final LoopbackServer server;
+        private final BlockingQueue<SocketChannel> idleConnections = new LinkedBlockingQueue<>();
+        private final List<SocketChannel> connections = new CopyOnWriteArrayList<>();
+        private int totalRecordsWritten = 0;
+        private int totalFlushOperations = 0;
+        private long totalBytesSent = 0;
+        private static final Logger log = Logger.getAnonymousLogger();
+
+        LoopbackDatabase(Duration latency, Duration jitter, int bytesPerSecond) throws IOException {
+            this.server = new LoopbackServer(latency, jitter, bytesPerSecond);
+        }
+
+        @Override
+        public void write(List<String> records) throws InterruptedException {
+            log.info("  [DB] Flushing %d records over a loopback TCP connection...".formatted(records.size()));
+            ByteBuffer frame = encode(records);
+            int frameBytes = frame.remaining();
+            SocketChannel connection = idleConnections.poll();
+            boolean acknowledged = false;
+            try {
+                if (connection == null) {
+                    connection = SocketChannel.open(server.address());
+                    connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connections.add(connection);
+                }
+                while (frame.hasRemaining()) {
+                    connection.write(frame);
+                }
+                ByteBuffer ack = ByteBuffer.allocate(Integer.BYTES);
+                if (!readFully(connection, ack) || ack.flip().getInt() != records.size()) {
+                    throw new IllegalStateException("The loopback database did not acknowledge the batch");
+                }
+                acknowledged = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write a batch to the loopback database", e);
+            } finally {
+                // A connection that failed part way through a batch can't be trusted for the next one, and it must not
+                // be leaked either.
+                if (!acknowledged && connection != null) {
+                    discard(connection);
+                }
+            }
+            idleConnections.add(connection);
+
+            synchronized (this) {
+                totalRecordsWritten += records.size();
+                totalFlushOperations++;
+                totalBytesSent += frameBytes;
+            }
+            log.info("  [DB] Flush complete.");
+        }
+
+        private void discard(SocketChannel connection) {
+            connections.remove(connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                log.warning("Failed to close a broken connection to the loopback database: " + e);
+            }
+        }
+
+        private static ByteBuffer encode(List<String> records) {
+            var encoded = new ArrayList<byte[]>(records.size());
+            int length = Integer.BYTES;
+            for (String record : records) {
+                byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                length += Integer.BYTES + bytes.length;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+            frame.putInt(length).putInt(records.size());
+            for (byte[] bytes : encoded) {
+                frame.putInt(bytes.length).put(bytes);
+            }
+            return frame.flip();
+        }
+
+        @Override
+        public synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+        @Override
+        public synchronized int totalFlushOperations() { return totalFlushOperations; }
+        synchronized long totalBytesSent() { return totalBytesSent; }
+
+        @Override
+        public void close() throws IOException {
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            server.close();
+        }
+    }
+
+    /**
+     * The server side of {@link LoopbackDatabase}. Each connection is served by its own virtual thread. After reading
+     * and decoding a whole frame, the server waits for the configured latency plus a random jitter plus the frame's
+     * transfer time at the configured bandwidth, and then acknowledges the batch.
+     */
+    static class LoopbackServer implements AutoCloseable {
+        private final ServerSocketChannel serverChannel;
+        private final Duration latency;
+        private final Duration jitter;
+        private final int bytesPerSecond;
+
+        LoopbackServer(Duration latency, Duration jitter, int bytesPerSecond) throws IOException {
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bytesPerSecond = bytesPerSecond;
+            this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread.ofVirtual().name("loopback-acceptor").start(this::acceptConnections);
+        }
+
+        SocketAddress address() throws IOException {
+            return serverChannel.getLocalAddress();
+        }
+
+        private void acceptConnections() {
+            try {
+                while (true) {
+                    SocketChannel connection = serverChannel.accept();
+                    Thread.ofVirtual().start(() -> serve(connection));
+                }
+            } catch (IOException e) {
+                // The server was closed.
+            }
+        }
+
+        private void serve(SocketChannel connection) {
+            try (connection) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+                while (readFully(connection, header.clear())) {
+                    int length = header.flip().getInt();
+                    ByteBuffer body = ByteBuffer.allocate(length);
+                    if (!readFully(connection, body)) {
+                        return;
+                    }
+                    body.flip();
+                    int count = body.getInt();
+                    for (int i = 0; i < count; i++) {
+                        var bytes = new byte[body.getInt()];
+                        body.get(bytes);
+                        // Decode the record like a real database would, even though it is thrown away.
+                        new String(bytes, StandardCharsets.UTF_8);
+                    }
+
+                    long jitterNanos = jitter.isZero() ? 0
+                            : ThreadLocalRandom.current().nextLong(-jitter.toNanos(), jitter.toNanos() + 1);
+                    long transferNanos = (Integer.BYTES + length) * 1_000_000_000L / bytesPerSecond;
+                    Thread.sleep(Duration.ofNanos(Math.max(0, latency.toNanos() + jitterNanos + transferNanos)));
+
+                    ByteBuffer ack = ByteBuffer.allocate(Integer.BYTES).putInt(count).flip();
+                    while (ack.hasRemaining()) {
+                        connection.write(ack);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The connection was closed.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Read until the buffer is full. Returns false if the connection reached end-of-stream first.
+     */
+    private static boolean readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 }
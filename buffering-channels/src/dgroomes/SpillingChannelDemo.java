@@ -0,0 +1,403 @@
+package dgroomes;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Demonstrates a byte-bounded multi-channel buffer that spills batches to disk when the sink falls behind, instead of
+ * blocking the producer.
+ * <p>
+ * {@code MultiChannelBuffer} bounds memory by record count and blocks producers when every channel is busy. That's the
+ * right behavior for a sink that is slow all the time, but bursty traffic would rather be absorbed than pushed back.
+ * This buffer bounds the data it holds in memory by bytes. When a batch fills up and every channel is already flushing,
+ * the batch is written to a segment file on local disk instead. When a flush completes and no other flush task is
+ * draining, the flush task becomes the drainer: it picks up the oldest spilled segment, reads it back, and writes it to
+ * the database, and it keeps going until there are no spilled segments left. There is only ever one drainer, so
+ * spilled segments reach the database one at a time, in the order they were spilled. Until the drainer is done, newly
+ * filled batches are spilled behind the backlog rather than flushed ahead of it, so a new batch never lands before a
+ * spilled one. Batches that were already flushing when the first segment was spilled can still finish in any order,
+ * like in {@code MultiChannelBuffer}.
+ * <p>
+ * The disk is bounded too. If the spilled bytes reach the spill limit, producers block until the drain catches up, just
+ * like the in-memory buffer.
+ * <p>
+ * The demo drives the buffer with a burst of traffic followed by a quiet period, once with spilling disabled and once
+ * with it enabled, and logs the spill and drain rates while it runs.
+ */
+public class SpillingChannelDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int NUM_CHANNELS = 3;
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+    private static final long MAX_SPILL_BYTES = 64 * 1024 * 1024;
+    private static final Duration NETWORK_LATENCY = Duration.ofMillis(50);
+    private static final int RECORD_PADDING = 100;
+    private static final Phase[] PHASES = {
+            new Phase("burst", 20_000, Duration.ofSeconds(2)),
+            new Phase("quiet", 1_000, Duration.ofSeconds(3)),
+    };
+    private static final Duration REPORT_INTERVAL = Duration.ofMillis(500);
+
+    record Phase(String name, int recordsPerSecond, Duration duration) {}
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Spill-to-Disk Buffered Write Demo ===");
+        log.info("Channels: %d, Max batch: %,d bytes, Max spill: %,d bytes, Network latency: %dms".formatted(
+                NUM_CHANNELS, MAX_BATCH_BYTES, MAX_SPILL_BYTES, NETWORK_LATENCY.toMillis()));
+        for (Phase phase : PHASES) {
+            log.info("Phase '%s': %,d rec/s for %ds".formatted(
+                    phase.name(), phase.recordsPerSecond(), phase.duration().toSeconds()));
+        }
+
+        var results = new ArrayList<String>();
+        for (boolean spill : new boolean[]{false, true}) {
+            log.info("");
+            log.info("--- Spilling %s ---".formatted(spill ? "enabled" : "disabled"));
+            Path spillDirectory = Files.createTempDirectory("spill");
+            try {
+                var database = new SimulatedDatabase(NETWORK_LATENCY);
+                var buffer = new SpillingMultiChannelBuffer(NUM_CHANNELS, MAX_BATCH_BYTES,
+                        spill ? MAX_SPILL_BYTES : 0, database, spillDirectory);
+                var reporter = Executors.newSingleThreadScheduledExecutor();
+                if (spill) {
+                    reporter.scheduleAtFixedRate(new RateReporter(buffer), REPORT_INTERVAL.toMillis(),
+                            REPORT_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+                }
+
+                long start = System.nanoTime();
+                long records = produce(buffer);
+                long producedNanos = System.nanoTime() - start;
+                buffer.close();
+                long totalNanos = System.nanoTime() - start;
+                reporter.shutdownNow();
+
+                if (database.totalRecordsWritten() != records) {
+                    throw new IllegalStateException("Expected %d records to be written but there were %d".formatted(
+                            records, database.totalRecordsWritten()));
+                }
+                var stats = buffer.stats();
+                results.add("%-8s | %,12d | %13.2fs | %13.2fs | %15.2fs | %,15d".formatted(
+                        spill ? "enabled" : "disabled", records, producedNanos / 1e9, totalNanos / 1e9,
+                        stats.producerBlockedNanos() / 1e9, stats.spilledBytes()));
+            } finally {
+                deleteRecursively(spillDirectory);
+            }
+        }
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%-8s | %12s | %14s | %14s | %16s | %15s".formatted(
+                "spilling", "records", "produce time", "total time", "producer blocked", "spilled bytes"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("With spilling, the producer never blocks during the burst. The backlog drains through one channel at a");
+        log.info("time to keep it in order, so it takes longer to drain than the blocking buffer takes to catch up.");
+    }
+
+    /**
+     * Write records on schedule through each phase. Returns the number of records written.
+     */
+    private static long produce(SpillingMultiChannelBuffer buffer) throws InterruptedException {
+        String padding = "x".repeat(RECORD_PADDING);
+        long records = 0;
+        for (Phase phase : PHASES) {
+            long phaseStart = System.nanoTime();
+            long phaseRecords = phase.recordsPerSecond() * phase.duration().toMillis() / 1000;
+            for (long i = 0; i < phaseRecords; i++) {
+                long intended = phaseStart + i * 1_000_000_000L / phase.recordsPerSecond();
+                long wait = intended - System.nanoTime();
+                if (wait > 1_000_000) {
+                    Thread.sleep(Duration.ofNanos(wait));
+                }
+                buffer.write("record-%d-%s".formatted(records++, padding));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Logs the spill and drain rates and the spill backlog each time it runs.
+     */
+    static class RateReporter implements Runnable {
+        private final SpillingMultiChannelBuffer buffer;
+        private SpillingMultiChannelBuffer.Stats previous;
+        private long previousNanos = System.nanoTime();
+
+        RateReporter(SpillingMultiChannelBuffer buffer) {
+            this.buffer = buffer;
+            this.previous = buffer.stats();
+        }
+
+        @Override
+        public void run() {
+            var current = buffer.stats();
+            long now = System.nanoTime();
+            double seconds = (now - previousNanos) / 1e9;
+            log.info("Spill: %,8.0f KB/s, Drain: %,8.0f KB/s, Spill backlog: %,6d KB in %d segments".formatted(
+                    (current.spilledBytes() - previous.spilledBytes()) / 1024.0 / seconds,
+                    (current.drainedBytes() - previous.drainedBytes()) / 1024.0 / seconds,
+                    current.backlogBytes() / 1024, current.backlogSegments()));
+            previous = current;
+            previousNanos = now;
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static class SimulatedDatabase {
+        private final Duration latency;
+        private long totalRecordsWritten = 0;
+
+        SimulatedDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        void write(List<String> records) throws InterruptedException {
+            Thread.sleep(latency);
+            synchronized (this) {
+                totalRecordsWritten += records.size();
+            }
+        }
+
+        synchronized long totalRecordsWritten() { return totalRecordsWritten; }
+    }
+
+    /**
+     * A multi-channel buffer that caps its in-memory data at {@code numChannels × maxBatchBytes} and spills overflow
+     * batches to segment files.
+     * <p>
+     * One channel collects records while up to {@code numChannels - 1} channels flush. A record's size is the length
+     * of its UTF-8 encoding. With a spill limit of 0, spilling is disabled and a full batch blocks until a channel is
+     * free, like {@code MultiChannelBuffer}.
+     * <p>
+     * Segments are written and read with plain buffered streams. Spilling happens while holding the lock, which keeps
+     * the spill order and the record order the same. Writing a batch to local disk is much faster than writing it to the
+     * database, so this is a good trade for a simple design.
+     */
+    static class SpillingMultiChannelBuffer {
+        private final int maxBatchBytes;
+        private final long maxSpillBytes;
+        private final int maxInFlight;
+        private final SimulatedDatabase database;
+        private final Path spillDirectory;
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final ArrayDeque<Segment> spilled = new ArrayDeque<>();
+        private List<String> active = new ArrayList<>();
+        private int activeBytes = 0;
+        private int inFlight = 0;
+        private long nextSegmentId = 0;
+        private boolean draining = false;
+        private boolean closed = false;
+        private Throwable failure;
+
+        private long spilledBytes = 0;
+        private long spilledBatches = 0;
+        private long drainedBytes = 0;
+        private long drainedBatches = 0;
+        private long backlogBytes = 0;
+        private long producerBlockedNanos = 0;
+
+        SpillingMultiChannelBuffer(int numChannels, int maxBatchBytes, long maxSpillBytes, SimulatedDatabase database,
+                                   Path spillDirectory) {
+            if (numChannels < 2) {
+                throw new IllegalArgumentException("At least two channels are needed, one to collect and one to flush");
+            }
+            this.maxBatchBytes = maxBatchBytes;
+            this.maxSpillBytes = maxSpillBytes;
+            this.maxInFlight = numChannels - 1;
+            this.database = database;
+            this.spillDirectory = spillDirectory;
+        }
+
+        synchronized void write(String record) throws InterruptedException {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+            throwIfFailed();
+            active.add(record);
+            activeBytes += record.getBytes(StandardCharsets.UTF_8).length;
+            if (activeBytes >= maxBatchBytes) {
+                seal();
+            }
+        }
+
+        /**
+         * Hand off the active batch: flush it if a channel is free and the backlog is fully drained, otherwise spill it.
+         * Blocks only when there is neither a free channel nor room to spill.
+         */
+        private void seal() throws InterruptedException {
+            long blockStart = System.nanoTime();
+            boolean blocked = false;
+            while (true) {
+                throwIfFailed();
+                if (inFlight < maxInFlight && !draining && spilled.isEmpty()) {
+                    dispatch(active);
+                    break;
+                }
+                if (backlogBytes + activeBytes <= maxSpillBytes) {
+                    spill(active, activeBytes);
+                    break;
+                }
+                blocked = true;
+                wait();
+            }
+            if (blocked) {
+                producerBlockedNanos += System.nanoTime() - blockStart;
+            }
+            active = new ArrayList<>();
+            activeBytes = 0;
+        }
+
+        private void dispatch(List<String> batch) {
+            inFlight++;
+            flushExecutor.execute(() -> {
+                try {
+                    database.write(batch);
+                    drain();
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * If there is a backlog and no other task is draining it, keep flushing spilled segments, oldest first, until
+         * there are none left. Then give up the channel.
+         * <p>
+         * The channel is given up in the same critical section that finds the backlog empty or already being drained.
+         * Otherwise a batch could be spilled after the check but before the channel is given up, and nothing would
+         * drain it.
+         */
+        private void drain() throws InterruptedException, IOException {
+            synchronized (this) {
+                if (draining || spilled.isEmpty()) {
+                    inFlight--;
+                    notifyAll();
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                Segment segment;
+                synchronized (this) {
+                    segment = spilled.poll();
+                    if (segment == null) {
+                        draining = false;
+                        inFlight--;
+                        notifyAll();
+                        return;
+                    }
+                }
+
+                List<String> batch = readSegment(segment.file());
+                Files.delete(segment.file());
+                database.write(batch);
+
+                synchronized (this) {
+                    drainedBytes += segment.bytes();
+                    drainedBatches++;
+                    backlogBytes -= segment.bytes();
+                    notifyAll();
+                }
+            }
+        }
+
+        private void spill(List<String> batch, int bytes) throws InterruptedException {
+            Path file = spillDirectory.resolve("segment-%08d.spill".formatted(nextSegmentId++));
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeInt(batch.size());
+                for (String record : batch) {
+                    out.writeUTF(record);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to spill a batch to " + file, e);
+            }
+            spilled.add(new Segment(file, bytes));
+            spilledBytes += bytes;
+            spilledBatches++;
+            backlogBytes += bytes;
+        }
+
+        /**
+         * Record a failed flush and give up its channel. The first failure is kept and rethrown to the producer, and
+         * anything waiting on the buffer is woken up so that it sees it.
+         */
+        private synchronized void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            inFlight--;
+            notifyAll();
+        }
+
+        private void throwIfFailed() {
+            if (failure != null) {
+                throw new RuntimeException("Flush failed", failure);
+            }
+        }
+
+        private static List<String> readSegment(Path file) throws IOException {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                int count = in.readInt();
+                var batch = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    batch.add(in.readUTF());
+                }
+                return batch;
+            }
+        }
+
+        /**
+         * Flush the remaining records and wait until every channel is idle and every spilled segment is drained. If a
+         * flush failed, stop waiting and throw its failure, because the segments it would have drained never will be.
+         */
+        synchronized void close() throws InterruptedException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!active.isEmpty()) {
+                    seal();
+                }
+                while (failure == null && (inFlight > 0 || !spilled.isEmpty())) {
+                    wait();
+                }
+                throwIfFailed();
+            } finally {
+                flushExecutor.shutdown();
+                flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+
+        synchronized Stats stats() {
+            return new Stats(spilledBytes, spilledBatches, drainedBytes, drainedBatches, backlogBytes, spilled.size(),
+                    producerBlockedNanos);
+        }
+
+        record Stats(long spilledBytes, long spilledBatches, long drainedBytes, long drainedBatches, long backlogBytes,
+                     int backlogSegments, long producerBlockedNanos) {}
+
+        record Segment(Path file, int bytes) {}
+    }
+}
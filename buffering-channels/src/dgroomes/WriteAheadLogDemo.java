@@ -0,0 +1,493 @@
+package dgroomes;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Demonstrates a multi-channel buffer backed by a memory-mapped write-ahead log, so that buffered records survive a
+ * crash.
+ * <p>
+ * Records sitting in {@code MultiChannelBuffer}'s channels are lost if the process dies before they are flushed. In
+ * write-ahead mode, every record is first appended to a memory-mapped segment file, and {@code write} only returns
+ * once the record is durable on disk. Then the record is buffered as usual. Whenever a flush to the database completes,
+ * the log's checkpoint advances past the records that are now safely in the database. On startup, the log replays
+ * every record after the checkpoint.
+ * <p>
+ * Forcing a memory-mapped file to disk is expensive, so the log uses group commit. When a writer needs its record to be
+ * durable and no force is in progress, it becomes the leader and forces everything appended so far. Writers that
+ * arrive during the force wait, and the next leader forces all of their records at once. One {@code force()} covers
+ * many concurrent writers.
+ * <p>
+ * The log is a single fixed-size segment. Rolling over to new segments and reclaiming checkpointed space are out of
+ * scope for this demo.
+ */
+public class WriteAheadLogDemo {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int NUM_CHANNELS = 2;
+    private static final int BUFFER_SIZE = 100;
+    private static final Duration NETWORK_LATENCY = Duration.ofMillis(5);
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int[] PRODUCER_COUNTS = {1, 4, 16, 64};
+    private static final int RECORDS_PER_RUN = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Write-Ahead Log Demo ===");
+        log.info("");
+        crashAndReplay();
+        log.info("");
+        benchmark();
+    }
+
+    /**
+     * Write some records, "crash" with records still sitting in a channel, and then replay them on restart.
+     */
+    private static void crashAndReplay() throws Exception {
+        log.info("--- Part 1: crash and replay ---");
+        Path file = Files.createTempFile("write-ahead-log", ".wal");
+        try {
+            var database = new SimulatedDatabase(NETWORK_LATENCY);
+            var wal = WriteAheadLog.open(file, SEGMENT_SIZE, true);
+            var buffer = new DurableMultiChannelBuffer(NUM_CHANNELS, 10, database, wal);
+            for (int i = 1; i <= 25; i++) {
+                buffer.write("record-" + i);
+            }
+            log.info("Wrote 25 records with a buffer size of 10. The database has received %d of them.".formatted(
+                    buffer.simulateCrash()));
+            log.info("CRASH! The records in the active channel are lost from memory.");
+
+            log.info("Restarting...");
+            var recoveredWal = WriteAheadLog.open(file, SEGMENT_SIZE, true);
+            List<String> replayed = recoveredWal.replay();
+            log.info("Replayed %d records from the write-ahead log: %s".formatted(replayed.size(), replayed));
+            var recoveredDatabase = new SimulatedDatabase(NETWORK_LATENCY);
+            var recoveredBuffer = new DurableMultiChannelBuffer(NUM_CHANNELS, 10, recoveredDatabase, recoveredWal);
+            recoveredBuffer.recover(replayed);
+            recoveredBuffer.close();
+            log.info("The recovered records were flushed. Records written to the database after restarting: %d".formatted(
+                    recoveredDatabase.totalRecordsWritten()));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Compare the throughput of the in-memory buffer, the write-ahead buffer that forces once per record, and the
+     * write-ahead buffer with group commit.
+     */
+    private static void benchmark() throws Exception {
+        log.info("--- Part 2: group commit benchmark ---");
+        log.info("Warming up...");
+        run(4, Mode.IN_MEMORY);
+        run(4, Mode.GROUP_COMMIT);
+        log.info("Records per run: %,d, Channels: %d, Buffer size: %d, Network latency: %dms".formatted(
+                RECORDS_PER_RUN, NUM_CHANNELS, BUFFER_SIZE, NETWORK_LATENCY.toMillis()));
+
+        var results = new ArrayList<String>();
+        for (int producers : PRODUCER_COUNTS) {
+            Result inMemory = run(producers, Mode.IN_MEMORY);
+            Result forcePerRecord = run(producers, Mode.FORCE_PER_RECORD);
+            Result groupCommit = run(producers, Mode.GROUP_COMMIT);
+            results.add("%9d | %,12.0f | %,16.0f | %,12.0f | %13.0f%% | %,14.1f".formatted(
+                    producers, inMemory.recordsPerSecond(), forcePerRecord.recordsPerSecond(),
+                    groupCommit.recordsPerSecond(), 100 * groupCommit.recordsPerSecond() / inMemory.recordsPerSecond(),
+                    (double) RECORDS_PER_RUN / groupCommit.forces()));
+        }
+
+        log.info("=== Results (records/s) ===");
+        log.info("%9s | %12s | %16s | %12s | %14s | %14s".formatted(
+                "producers", "in-memory", "force/record", "group commit", "% of in-memory", "records/force"));
+        for (String result : results) {
+            log.info(result);
+        }
+    }
+
+    enum Mode {IN_MEMORY, FORCE_PER_RECORD, GROUP_COMMIT}
+
+    record Result(double recordsPerSecond, long forces) {}
+
+    private static Result run(int producers, Mode mode) throws Exception {
+        Path file = Files.createTempFile("write-ahead-log", ".wal");
+        try {
+            var database = new SimulatedDatabase(NETWORK_LATENCY);
+            var wal = mode == Mode.IN_MEMORY ? null : WriteAheadLog.open(file, SEGMENT_SIZE, mode == Mode.GROUP_COMMIT);
+            var buffer = new DurableMultiChannelBuffer(NUM_CHANNELS, BUFFER_SIZE, database, wal);
+            int perProducer = RECORDS_PER_RUN / producers;
+
+            long start = System.nanoTime();
+            var threads = new ArrayList<Thread>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        for (int i = 0; i < perProducer; i++) {
+                            buffer.write("producer-%d-record-%d".formatted(producer, i));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            buffer.close();
+            long elapsed = System.nanoTime() - start;
+
+            if (database.totalRecordsWritten() != (long) perProducer * producers) {
+                throw new IllegalStateException("Records were lost");
+            }
+            return new Result(database.totalRecordsWritten() / (elapsed / 1_000_000_000.0),
+                    wal == null ? 0 : wal.forces());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static class SimulatedDatabase {
+        private final Duration latency;
+        private final AtomicLong totalRecordsWritten = new AtomicLong();
+
+        SimulatedDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        void write(List<String> records) throws InterruptedException {
+            Thread.sleep(latency);
+            totalRecordsWritten.addAndGet(records.size());
+        }
+
+        long totalRecordsWritten() { return totalRecordsWritten.get(); }
+    }
+
+    /**
+     * An append-only log in a memory-mapped file.
+     * <p>
+     * The file starts with an 8-byte header that holds the checkpoint: the position of the first record that may not
+     * have reached the database yet. Records follow as frames of a 4-byte length, a 4-byte CRC32C checksum, and the
+     * record's UTF-8 bytes. A zero length marks the end of the log. A frame with a bad checksum is a torn write from a
+     * crash in the middle of an append, and it also marks the end of the log.
+     */
+    static class WriteAheadLog {
+        private static final int HEADER_SIZE = Long.BYTES;
+        private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+
+        private final MappedByteBuffer mapped;
+        private final boolean groupCommit;
+        private final Object commitLock = new Object();
+        private volatile int writePosition;
+        private long checkpoint;
+        private int durablePosition;
+        private boolean forceInProgress = false;
+        private long forces = 0;
+
+        private WriteAheadLog(MappedByteBuffer mapped, boolean groupCommit) {
+            this.mapped = mapped;
+            this.groupCommit = groupCommit;
+            this.checkpoint = Math.max(HEADER_SIZE, mapped.getLong(0));
+            this.writePosition = scanForEnd((int) checkpoint);
+            this.durablePosition = writePosition;
+        }
+
+        /**
+         * Open (or create) the log file and map it into memory.
+         *
+         * @param groupCommit whether concurrent writers share forces. If false, every writer forces on its own, one at
+         *                    a time.
+         */
+        static WriteAheadLog open(Path file, int segmentSize, boolean groupCommit) throws IOException {
+            try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel is closed.
+                return new WriteAheadLog(channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), groupCommit);
+            }
+        }
+
+        /**
+         * Append a record to the log. It is not durable until {@link #awaitDurable} returns.
+         *
+         * @return the position just past the end of the record's frame
+         */
+        synchronized int append(String record) {
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            int position = writePosition;
+            int end = position + FRAME_HEADER_SIZE + bytes.length;
+            // Leave room for the zero length that marks the end of the log.
+            if (end + Integer.BYTES > mapped.capacity()) {
+                throw new IllegalStateException("The write-ahead log segment is full");
+            }
+
+            var crc = new CRC32C();
+            crc.update(bytes);
+            mapped.put(position + FRAME_HEADER_SIZE, bytes);
+            mapped.putInt(position + Integer.BYTES, (int) crc.getValue());
+            // Write the length last. Until then, a reader sees a zero length, which is the end of the log.
+            mapped.putInt(position, bytes.length);
+            writePosition = end;
+            return end;
+        }
+
+        /**
+         * Block until everything up to the given position is forced to disk.
+         */
+        void awaitDurable(int position) throws InterruptedException {
+            while (true) {
+                int target;
+                synchronized (commitLock) {
+                    while (forceInProgress && durablePosition < position) {
+                        commitLock.wait();
+                    }
+                    if (durablePosition >= position) {
+                        return;
+                    }
+                    forceInProgress = true;
+                    // With group commit, the leader forces everything appended so far, not just its own record.
+                    target = groupCommit ? writePosition : position;
+                }
+
+                int from = durablePosition;
+                mapped.force(from, target - from);
+
+                synchronized (commitLock) {
+                    durablePosition = Math.max(durablePosition, target);
+                    forceInProgress = false;
+                    forces++;
+                    commitLock.notifyAll();
+                }
+            }
+        }
+
+        int writePosition() {
+            return writePosition;
+        }
+
+        /**
+         * Record that every record before the given position has reached the database.
+         */
+        synchronized void checkpoint(long position) {
+            if (position > checkpoint) {
+                checkpoint = position;
+                mapped.putLong(0, position);
+                mapped.force(0, HEADER_SIZE);
+            }
+        }
+
+        /**
+         * Read every record after the checkpoint.
+         */
+        synchronized List<String> replay() {
+            var records = new ArrayList<String>();
+            int position = (int) checkpoint;
+            while (position < writePosition) {
+                int length = mapped.getInt(position);
+                var bytes = new byte[length];
+                mapped.get(position + FRAME_HEADER_SIZE, bytes);
+                records.add(new String(bytes, StandardCharsets.UTF_8));
+                position += FRAME_HEADER_SIZE + length;
+            }
+            return records;
+        }
+
+        /**
+         * Find the end of the valid frames, starting from the given position.
+         */
+        private int scanForEnd(int position) {
+            while (position + FRAME_HEADER_SIZE <= mapped.capacity()) {
+                int length = mapped.getInt(position);
+                if (length <= 0 || position + FRAME_HEADER_SIZE + length > mapped.capacity()) {
+                    break;
+                }
+                var bytes = new byte[length];
+                mapped.get(position + FRAME_HEADER_SIZE, bytes);
+                var crc = new CRC32C();
+                crc.update(bytes);
+                if ((int) crc.getValue() != mapped.getInt(position + Integer.BYTES)) {
+                    break;
+                }
+                position += FRAME_HEADER_SIZE + length;
+            }
+            return position;
+        }
+
+        long forces() {
+            synchronized (commitLock) {
+                return forces;
+            }
+        }
+    }
+
+    /**
+     * A multi-channel buffer that writes every record to a write-ahead log before buffering it. If the log is null,
+     * it behaves like the plain in-memory {@code MultiChannelBuffer}.
+     * <p>
+     * The log append and the buffer add happen together under the buffer's monitor, so the log order and the batch
+     * order are the same. Waiting for the record to be durable happens after the monitor is released, so that many
+     * writers can wait on the same group commit. Every batch remembers the log position of its first record. When a
+     * batch's flush completes, the checkpoint moves up to the first record of the oldest batch that hasn't been
+     * flushed yet.
+     */
+    static class DurableMultiChannelBuffer {
+        private final int bufferCapacity;
+        private final SimulatedDatabase database;
+        private final WriteAheadLog wal;
+        private final ExecutorService flushExecutor;
+        private final Channel[] channels;
+        private final ConcurrentSkipListSet<Integer> unflushedBatchStarts = new ConcurrentSkipListSet<>();
+        private int activeChannelIndex = 0;
+        private boolean closed = false;
+
+        DurableMultiChannelBuffer(int numChannels, int bufferCapacity, SimulatedDatabase database, WriteAheadLog wal) {
+            this.bufferCapacity = bufferCapacity;
+            this.database = database;
+            this.wal = wal;
+            this.flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.channels = new Channel[numChannels];
+            for (int i = 0; i < numChannels; i++) {
+                channels[i] = new Channel();
+            }
+        }
+
+        void write(String record) throws InterruptedException {
+            int position;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Buffer is closed");
+                }
+                if (wal == null) {
+                    channels[activeChannelIndex].buffer.add(record);
+                    position = 0;
+                } else {
+                    position = appendAndAdd(record);
+                }
+                if (channels[activeChannelIndex].buffer.size() >= bufferCapacity) {
+                    flushActive();
+                }
+            }
+
+            if (wal != null) {
+                wal.awaitDurable(position);
+            }
+        }
+
+        private int appendAndAdd(String record) {
+            Channel active = channels[activeChannelIndex];
+            int start = wal.writePosition();
+            int end = wal.append(record);
+            if (active.buffer.isEmpty()) {
+                active.firstPosition = start;
+                unflushedBatchStarts.add(start);
+            }
+            active.buffer.add(record);
+            active.endPosition = end;
+            return end;
+        }
+
+        /**
+         * Flush replayed records straight to the database before accepting new writes, and then checkpoint past them.
+         */
+        synchronized void recover(List<String> replayed) throws InterruptedException {
+            if (!replayed.isEmpty()) {
+                database.write(replayed);
+            }
+            wal.checkpoint(wal.writePosition());
+        }
+
+        private void flushActive() throws InterruptedException {
+            Channel active = channels[activeChannelIndex];
+            List<String> toFlush = active.buffer;
+            int firstPosition = active.firstPosition;
+            int endPosition = active.endPosition;
+            active.buffer = new ArrayList<>(bufferCapacity);
+
+            active.pendingFlush = flushExecutor.submit(() -> {
+                database.write(toFlush);
+                if (wal != null) {
+                    flushed(firstPosition, endPosition);
+                }
+                return null;
+            });
+
+            activeChannelIndex = (activeChannelIndex + 1) % channels.length;
+            await(channels[activeChannelIndex]);
+        }
+
+        /**
+         * Advance the checkpoint after a batch has reached the database.
+         */
+        private void flushed(int firstPosition, int endPosition) {
+            unflushedBatchStarts.remove(firstPosition);
+            Integer oldestUnflushed = unflushedBatchStarts.isEmpty() ? null : unflushedBatchStarts.first();
+            wal.checkpoint(oldestUnflushed == null ? endPosition : Math.min(oldestUnflushed, endPosition));
+        }
+
+        synchronized void close() throws InterruptedException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            Channel active = channels[activeChannelIndex];
+            if (!active.buffer.isEmpty()) {
+                database.write(active.buffer);
+                if (wal != null) {
+                    flushed(active.firstPosition, active.endPosition);
+                }
+                active.buffer.clear();
+            }
+            for (Channel channel : channels) {
+                await(channel);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Stop the buffer as if the process died: in-flight flushes are allowed to finish (they were already on the
+         * wire), but the records in the active channel are simply dropped.
+         *
+         * @return the number of records that reached the database
+         */
+        synchronized long simulateCrash() throws InterruptedException {
+            closed = true;
+            for (Channel channel : channels) {
+                await(channel);
+            }
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            return database.totalRecordsWritten();
+        }
+
+        private static void await(Channel channel) throws InterruptedException {
+            if (channel.pendingFlush == null) {
+                return;
+            }
+            try {
+                channel.pendingFlush.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Flush failed", e);
+            }
+            channel.pendingFlush = null;
+        }
+
+        static class Channel {
+            List<String> buffer = new ArrayList<>();
+            int firstPosition;
+            int endPosition;
+            Future<Void> pendingFlush = null;
+        }
+    }
+}
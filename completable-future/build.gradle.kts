@@ -0,0 +1,10 @@
+// 'StructuredConcurrencyMain' uses 'StructuredTaskScope', which is a preview API in Java 21. Preview APIs only compile
+// with '--enable-preview', and '--enable-preview' only works together with a release that matches the compiler's.
+tasks.withType<JavaCompile> {
+    options.release.set(21)
+    options.compilerArgs.add("--enable-preview")
+}
+
+tasks.withType<JavaExec> {
+    jvmArgs("--enable-preview")
+}
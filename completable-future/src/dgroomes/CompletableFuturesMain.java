@@ -1,8 +1,13 @@
 package dgroomes;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.CompletableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.System.out;
 
@@ -11,12 +16,229 @@ import static java.lang.System.out;
  */
 public class CompletableFuturesMain {
 
+    private static final int[] SCALING_ITEM_COUNTS = {3, 30, 300, 3_000, 30_000, 100_000};
+    private static final Duration SCALING_BUDGET = Duration.ofSeconds(30);
+
+    /**
+     * Creating a platform thread per task is fine for a few thousand tasks, but 100,000 platform threads can exhaust
+     * the OS's thread limits.
+     */
+    private static final int MAX_PLATFORM_THREAD_PER_TASK_ITEMS = 10_000;
+
+    private static final int[] TIMER_ITEM_COUNTS = {10_000, 100_000, 1_000_000};
+    private static final int TIMER_POOL_SIZE = 2;
+
     public static void main(String[] args) {
+        if (List.of(args).contains("--scaling")) {
+            scaling();
+            return;
+        }
+        if (List.of(args).contains("--timer")) {
+            timer();
+            return;
+        }
+
         out.println("Executing the program with an implementation that uses synchronously executed simulated work. In other words, *no concurrency*.");
-        new App(false).execute();
+        new App(false, ExecutorStrategy.COMMON_POOL).execute();
+
+        for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+            out.printf("Executing the program with an implementation that kicks off simulated work concurrently on the %s executor. Notice how it executes quicker than before.\n", strategy.label);
+            new App(true, strategy).execute();
+        }
+    }
+
+    /**
+     * Run more and more concurrent work items on each executor strategy and report the wall time, the peak number of
+     * live platform threads, and the peak number of work items that were in progress at the same time. Runs that would
+     * take longer than the budget are skipped.
+     */
+    private static void scaling() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.printf("Each work item sleeps for %s. Runs projected to take longer than %s are skipped.\n",
+                Worker.Amount.SMALL.latency(), SCALING_BUDGET);
+        out.printf("CompletableFuture's default async executor here is %s.\n", ExecutorStrategy.describeCommonPool());
+        out.println();
+
+        var results = new ArrayList<String>();
+        for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+            for (int items : SCALING_ITEM_COUNTS) {
+                long batches = (items + strategy.concurrencyLimit() - 1) / strategy.concurrencyLimit();
+                Duration projected = Worker.Amount.SMALL.latency().multipliedBy(batches);
+                if (projected.compareTo(SCALING_BUDGET) > 0) {
+                    results.add("%-14s | %,7d | skipped: projected to take %s".formatted(strategy.label, items, projected));
+                    continue;
+                }
+                if (strategy.platformThreadPerTask() && items > MAX_PLATFORM_THREAD_PER_TASK_ITEMS) {
+                    results.add("%-14s | %,7d | skipped: would start %,d platform threads".formatted(strategy.label, items, items));
+                    continue;
+                }
+
+                out.printf("Running %,d work items on the %s executor...\n", items, strategy.label);
+                var executor = strategy.create();
+                try {
+                    var worker = new Worker(executor, false);
+                    threads.resetPeakThreadCount();
+                    var start = Instant.now();
+
+                    var futures = new CompletableFuture<?>[items];
+                    for (int i = 0; i < items; i++) {
+                        futures[i] = worker.doWork(Worker.Amount.SMALL);
+                    }
+                    CompletableFuture.allOf(futures).join();
+
+                    var duration = Duration.between(start, Instant.now());
+                    results.add("%-14s | %,7d | %9.2fs | %,12d | %,16d".formatted(strategy.label, items,
+                            duration.toMillis() / 1000.0, threads.getPeakThreadCount(), worker.peakInProgress()));
+                } finally {
+                    ExecutorStrategy.close(executor);
+                }
+            }
+        }
+
+        out.println();
+        out.printf("%-14s | %7s | %10s | %12s | %16s\n", "executor", "items", "wall time", "peak threads", "peak in progress");
+        for (String result : results) {
+            out.println(result);
+        }
+        out.println();
+        out.println("'peak threads' counts live platform threads, including the JVM's own. Virtual threads aren't included.");
+    }
+
+    /**
+     * Compare the sleeping worker on virtual threads against the timer-based worker on a small fixed pool, with up to
+     * a million work items in flight. The items cycle through the small, medium and large amounts.
+     * <p>
+     * The heap is measured after a full GC while every item is still in flight, so it includes whatever each in-flight
+     * item holds on to: for the sleeping worker, a virtual thread and its stack; for the timer-based worker, a
+     * scheduled task.
+     */
+    private static void timer() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        var amounts = Worker.Amount.values();
+        out.printf("The timer-based worker runs on a fixed pool of %d platform threads.\n", TIMER_POOL_SIZE);
+        out.println();
+
+        var results = new ArrayList<String>();
+        for (int items : TIMER_ITEM_COUNTS) {
+            for (boolean blocking : new boolean[]{true, false}) {
+                String label = blocking ? "sleeping" : "timer";
+                out.printf("Running %,d work items on the %s worker...\n", items, label);
+                Executor executor = blocking
+                        ? Executors.newVirtualThreadPerTaskExecutor()
+                        : Executors.newFixedThreadPool(TIMER_POOL_SIZE);
+                try {
+                    var worker = new Worker(executor, false);
+                    long heapBefore = usedHeapAfterGc();
+                    threads.resetPeakThreadCount();
+                    var start = Instant.now();
+
+                    var futures = new CompletableFuture<?>[items];
+                    for (int i = 0; i < items; i++) {
+                        var amount = amounts[i % amounts.length];
+                        futures[i] = blocking ? worker.doWork(amount) : worker.doWorkWithoutBlocking(amount);
+                    }
+                    var submitted = Duration.between(start, Instant.now());
+                    long heapInFlight = usedHeapAfterGc() - heapBefore;
+                    CompletableFuture.allOf(futures).join();
+
+                    var duration = Duration.between(start, Instant.now());
+                    results.add("%-8s | %,9d | %10.2fs | %10.2fs | %,12.0f | %,10.0f | %,12d".formatted(label, items,
+                            submitted.toMillis() / 1000.0, duration.toMillis() / 1000.0,
+                            items / (duration.toMillis() / 1000.0), (double) heapInFlight / items,
+                            threads.getPeakThreadCount()));
+                } finally {
+                    ExecutorStrategy.close(executor);
+                }
+            }
+        }
+
+        out.println();
+        out.printf("%-8s | %9s | %11s | %11s | %12s | %10s | %12s\n",
+                "worker", "items", "submit time", "wall time", "items/s", "bytes/item", "peak threads");
+        for (String result : results) {
+            out.println(result);
+        }
+        out.println();
+        out.println("'bytes/item' is the heap in use while every item is in flight, divided by the number of items.");
+    }
+
+    private static long usedHeapAfterGc() {
+        // A single GC doesn't always reclaim everything left over from the previous run, so collect twice.
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
+
+/**
+ * Where {@link Worker} runs its simulated work.
+ */
+enum ExecutorStrategy {
+
+    /**
+     * The executor that {@link CompletableFuture#supplyAsync(java.util.function.Supplier)} uses when none is given. This
+     * is the common {@link ForkJoinPool}, unless the common pool's parallelism is 1 (for example, on a single-core
+     * machine), in which case it is a new thread per task.
+     */
+    COMMON_POOL("common pool"),
+
+    /**
+     * A fixed-size pool of platform threads.
+     */
+    FIXED_PLATFORM_POOL("fixed pool"),
+
+    /**
+     * A new virtual thread per task.
+     */
+    VIRTUAL_THREAD_PER_TASK("virtual thread");
+
+    static final int FIXED_POOL_SIZE = 100;
+
+    final String label;
+
+    ExecutorStrategy(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Create the executor. Close it with {@link #close(Executor)} when done.
+     */
+    Executor create() {
+        return switch (this) {
+            case COMMON_POOL -> CompletableFuture.completedFuture(null).defaultExecutor();
+            case FIXED_PLATFORM_POOL -> Executors.newFixedThreadPool(FIXED_POOL_SIZE);
+            case VIRTUAL_THREAD_PER_TASK -> Executors.newVirtualThreadPerTaskExecutor();
+        };
+    }
+
+    /**
+     * Wait for the executor's tasks to finish and shut it down. Closing the common pool has no effect.
+     */
+    static void close(Executor executor) {
+        if (executor instanceof ExecutorService executorService) {
+            executorService.close();
+        }
+    }
+
+    /**
+     * How many tasks can run at the same time.
+     */
+    int concurrencyLimit() {
+        return switch (this) {
+            case COMMON_POOL -> platformThreadPerTask() ? Integer.MAX_VALUE : ForkJoinPool.getCommonPoolParallelism();
+            case FIXED_PLATFORM_POOL -> FIXED_POOL_SIZE;
+            case VIRTUAL_THREAD_PER_TASK -> Integer.MAX_VALUE;
+        };
+    }
 
-        out.println("Executing the program with an implementation that kicks off simulated work concurrently. Notice how it executes quicker than before.");
-        new App(true).execute();
+    boolean platformThreadPerTask() {
+        return this == COMMON_POOL && !(CompletableFuture.completedFuture(null).defaultExecutor() instanceof ForkJoinPool);
+    }
+
+    static String describeCommonPool() {
+        return COMMON_POOL.platformThreadPerTask()
+                ? "a new platform thread per task (the common pool's parallelism is %d)".formatted(ForkJoinPool.getCommonPoolParallelism())
+                : "the common ForkJoinPool with parallelism %d".formatted(ForkJoinPool.getCommonPoolParallelism());
     }
 }
 
@@ -26,6 +248,20 @@ public class CompletableFuturesMain {
  */
 class Worker {
 
+    private final Executor executor;
+    private final boolean verbose;
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicInteger peakInProgress = new AtomicInteger();
+
+    /**
+     * @param executor the executor to run the work on
+     * @param verbose  whether to print a line when each piece of work is done
+     */
+    Worker(Executor executor, boolean verbose) {
+        this.executor = executor;
+        this.verbose = verbose;
+    }
+
     enum Amount {
 
         SMALL(1, "Performed a small amount of work (1 second)"),
@@ -39,6 +275,10 @@ class Worker {
             this.latency = Duration.ofSeconds(latencySeconds);
             this.description = description;
         }
+
+        Duration latency() {
+            return latency;
+        }
     }
 
     /**
@@ -46,38 +286,75 @@ class Worker {
      */
     CompletableFuture<String> doWork(Amount amount) {
         return CompletableFuture.supplyAsync(() -> {
+            peakInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
             try {
                 Thread.sleep(amount.latency);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
+            } finally {
+                inProgress.decrementAndGet();
             }
-            out.println(amount.description);
+            if (verbose) out.println(amount.description);
+            return amount.description;
+        }, executor);
+    }
+
+    /**
+     * Execute some work without blocking a thread while it's "in progress". Instead of sleeping, the work is scheduled
+     * to complete after the amount's latency with {@link CompletableFuture#delayedExecutor}. A single timer thread
+     * keeps track of the deadlines, and the executor only runs the short completion step, so millions of pieces of work
+     * can be outstanding at once on a few threads.
+     */
+    CompletableFuture<String> doWorkWithoutBlocking(Amount amount) {
+        peakInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+        var delayed = CompletableFuture.delayedExecutor(amount.latency.toNanos(), TimeUnit.NANOSECONDS, executor);
+        return CompletableFuture.supplyAsync(() -> {
+            inProgress.decrementAndGet();
+            if (verbose) out.println(amount.description);
             return amount.description;
-        });
+        }, delayed);
+    }
+
+    /**
+     * The most pieces of work that were in progress at the same time.
+     */
+    int peakInProgress() {
+        return peakInProgress.get();
     }
 }
 
 /**
  * Executes a bunch of simulated work.
  * <p>
- * It is configurable to execute the work either synchronously (one after the other) or concurrently.
+ * It is configurable to execute the work either synchronously (one after the other) or concurrently, and to run the
+ * work on any {@link ExecutorStrategy}.
  */
 class App {
 
-    private final Worker worker = new Worker();
+    private final ExecutorStrategy strategy;
 
     private final boolean concurrent;
 
-    public App(boolean concurrent) {
+    public App(boolean concurrent, ExecutorStrategy strategy) {
         this.concurrent = concurrent;
+        this.strategy = strategy;
     }
 
     void execute() {
+        var executor = strategy.create();
+        try {
+            execute(new Worker(executor, true));
+        } finally {
+            ExecutorStrategy.close(executor);
+        }
+    }
+
+    private void execute(Worker worker) {
         var start = Instant.now();
 
-        var m1Completable = kickOffWork(Worker.Amount.SMALL);
-        var m2Completable = kickOffWork(Worker.Amount.MEDIUM);
-        var m3Completable = kickOffWork(Worker.Amount.LARGE);
+        var m1Completable = kickOffWork(worker, Worker.Amount.SMALL);
+        var m2Completable = kickOffWork(worker, Worker.Amount.MEDIUM);
+        var m3Completable = kickOffWork(worker, Worker.Amount.LARGE);
 
         m1Completable.join();
         m2Completable.join();
@@ -92,7 +369,7 @@ class App {
      * off and the method will return immediately so that more work can be kicked off right away. Otherwise, the method
      * will block until the work is complete.
      */
-    private CompletableFuture<String> kickOffWork(Worker.Amount amount) {
+    private CompletableFuture<String> kickOffWork(Worker worker, Worker.Amount amount) {
         var future = worker.doWork(amount);
         if (concurrent) return future;
 
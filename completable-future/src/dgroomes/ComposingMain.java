@@ -1,6 +1,14 @@
 package dgroomes;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -8,23 +16,76 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 /**
- * THIS WAS PARTIALLY IMPLEMENTED but I didn't finish it, and it won't work, especially because I've removed the WireMock
- * integration in this repository. This code needs to be re-written or deleted.
- * <p>
  * Composing instances of CompletableFuture.
+ * <p>
+ * The program starts a mock API in-process (see {@link MockApi}) and makes a composition of HTTP requests to it. The
+ * "containing geography" requests telescope into each other: each one uses the previous response as its input. The
+ * composition is non-blocking. Each hop is chained with {@link CompletableFuture#thenCompose}, so no thread waits on a
+ * response.
+ * <p>
+ * "Containing geography" lookups go through a {@link SingleFlightCache}. Concurrent requests for the same geography
+ * share one HTTP call, and completed lookups are cached for a while.
+ * <p>
+ * "Message" requests can go through a {@link BatchLoader}. Calls made within a short window are sent to the mock API as
+ * one batch request, and the batch response is split back out to each caller.
+ * <p>
+ * Requests can go through a {@link RequestGuard}, which adds a per-call deadline, hedged requests and an adaptive
+ * concurrency limit in front of the {@link HttpClient}.
+ * <p>
+ * Run with {@code --benchmark} to measure how many of these chains one {@link HttpClient} can run in parallel. Run with
+ * {@code --tail} to measure the tail latency of lookups against a mock API that is sometimes slow and has limited
+ * capacity, with and without each of the request guard's features.
  */
 public class ComposingMain {
 
-    public static final String MOCK_API_ORIGIN = "http://localhost:8070/";
     public static final HttpLogLevel HTTP_CLIENT_LOG_LEVEL = HttpLogLevel.ERROR;
+    public static final Duration MOCK_API_DELAY = Duration.ofMillis(200);
+    public static final Duration BENCHMARK_MOCK_API_DELAY = Duration.ofMillis(50);
+    public static final int[] BENCHMARK_PARALLEL_CHAINS = {1, 10, 100, 1_000, 5_000};
+    public static final Duration CACHE_TTL = Duration.ofSeconds(30);
+    public static final int CACHE_MAX_SIZE = 1_000;
+    public static final MessageBatching MESSAGE_BATCHING = new MessageBatching(Duration.ofMillis(5), 100);
+    public static final MockApi.Faults TAIL_FAULTS = new MockApi.Faults(0.02, Duration.ofSeconds(1), 50);
+    public static final int[] TAIL_RATES = {500, 1_500};
+    public static final Duration TAIL_RUN_DURATION = Duration.ofSeconds(2);
+    public static final Duration TAIL_DEADLINE = Duration.ofMillis(500);
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         setHttpClientLogLevel(HTTP_CLIENT_LOG_LEVEL);
-        HttpClient client = HttpClient.newHttpClient();
-        new App(client).execute();
+        boolean benchmark = List.of(args).contains("--benchmark");
+        boolean tail = List.of(args).contains("--tail");
+
+        try (var mockApi = new MockApi(benchmark || tail ? BENCHMARK_MOCK_API_DELAY : MOCK_API_DELAY)) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            if (benchmark) {
+                benchmark(client, mockApi);
+            } else if (tail) {
+                benchmarkTailLatency(client, mockApi);
+            } else {
+                var cache = new SingleFlightCache<String, String>(CACHE_MAX_SIZE, CACHE_TTL);
+                new App(client, mockApi.origin(), true, cache, null, null).execute();
+                System.out.printf("Geography cache: %s\n", cache.stats());
+            }
+        }
     }
 
     public enum HttpLogLevel {ERROR, INFO, DEBUG, TRACE}
@@ -43,6 +104,169 @@ public class ComposingMain {
         System.setProperty("jdk.httpclient.HttpClient.log", value);
     }
 
+    /**
+     * Run more and more "containing geography" chains at the same time, without and then with the single-flight cache,
+     * and report the wall time, the chains completed per second, the peak number of platform threads, and the number
+     * of calls that reached the mock API. Every run with the cache starts with an empty cache.
+     * <p>
+     * Then make more and more "message" calls at the same time, one request per call and then batched, and report the
+     * same numbers for them.
+     */
+    private static void benchmark(HttpClient client, MockApi mockApi) {
+        var threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("Each chain is 3 requests in sequence. The mock API delays every response by %s.\n",
+                BENCHMARK_MOCK_API_DELAY);
+
+        // Warm up the client and the server.
+        new App(client, mockApi.origin(), false, null, null, null).runChains(100);
+
+        var results = new ArrayList<String>();
+        for (boolean cached : new boolean[]{false, true}) {
+            for (int chains : BENCHMARK_PARALLEL_CHAINS) {
+                var cache = cached ? new SingleFlightCache<String, String>(CACHE_MAX_SIZE, CACHE_TTL) : null;
+                var app = new App(client, mockApi.origin(), false, cache, null, null);
+                long callsBefore = mockApi.requestCount();
+                threads.resetPeakThreadCount();
+                var start = Instant.now();
+                app.runChains(chains);
+                var duration = Duration.between(start, Instant.now());
+                double seconds = duration.toMillis() / 1000.0;
+                results.add("%-5s | %,15d | %9.2fs | %,10.0f | %,12d | %,13d | %s".formatted(
+                        cached ? "yes" : "no", chains, seconds, chains / seconds, threads.getPeakThreadCount(),
+                        mockApi.requestCount() - callsBefore, cached ? cache.stats() : "-"));
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-5s | %15s | %10s | %10s | %12s | %13s | %s\n", "cache", "parallel chains", "wall time",
+                "chains/s", "peak threads", "backend calls", "cache stats");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println();
+        System.out.println("A chain can't finish faster than 3 delays, so the ideal wall time is the same for every row.");
+
+        benchmarkMessages(client, mockApi);
+    }
+
+    private static void benchmarkMessages(HttpClient client, MockApi mockApi) {
+        var threads = ManagementFactory.getThreadMXBean();
+        System.out.println();
+        System.out.printf("Each message call is answered after %s. Batching waits up to %s for up to %d calls.\n",
+                BENCHMARK_MOCK_API_DELAY, MESSAGE_BATCHING.window(), MESSAGE_BATCHING.maxBatchSize());
+
+        var results = new ArrayList<String>();
+        for (MessageBatching batching : new MessageBatching[]{null, MESSAGE_BATCHING}) {
+            for (int calls : BENCHMARK_PARALLEL_CHAINS) {
+                var app = new App(client, mockApi.origin(), false, null, batching, null);
+                long requestsBefore = mockApi.requestCount();
+                threads.resetPeakThreadCount();
+                var start = Instant.now();
+                app.runMessages(calls);
+                var duration = Duration.between(start, Instant.now());
+                double seconds = duration.toMillis() / 1000.0;
+                results.add("%-8s | %,14d | %9.2fs | %,10.0f | %,12d | %,15d | %s".formatted(
+                        batching == null ? "no" : "yes", calls, seconds, calls / seconds, threads.getPeakThreadCount(),
+                        mockApi.requestCount() - requestsBefore,
+                        batching == null ? "-" : app.messageLoader.stats()));
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-8s | %14s | %10s | %10s | %12s | %15s | %s\n", "batching", "parallel calls", "wall time",
+                "calls/s", "peak threads", "backend requests", "batch stats");
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * Send "containing geography" lookups to a mock API that answers some requests slowly and only works on a limited
+     * number of requests at once. The lookups are sent open loop: each one has an intended start time on a fixed
+     * schedule, and its latency is measured from that time, so a lookup that was held up by earlier ones isn't
+     * excused. Each configuration of the request guard runs at a rate under the mock API's capacity and at a rate over
+     * it.
+     */
+    private static void benchmarkTailLatency(HttpClient client, MockApi mockApi) {
+        mockApi.injectFaults(TAIL_FAULTS);
+        int capacityPerSecond = (int) (TAIL_FAULTS.capacity() * 1_000 / BENCHMARK_MOCK_API_DELAY.toMillis());
+        System.out.printf("The mock API answers in %s, but %.0f%% of requests take %s longer. It works on %d requests " +
+                          "at once (about %,d per second) and queues the rest.\n",
+                BENCHMARK_MOCK_API_DELAY, TAIL_FAULTS.slowFraction() * 100, TAIL_FAULTS.slowDelay(),
+                TAIL_FAULTS.capacity(), capacityPerSecond);
+
+        // Warm up the client and the server, and open enough connections for the lower rate.
+        new App(client, mockApi.origin(), false, null, null, null).runOpenLoop(TAIL_RATES[0], TAIL_RUN_DURATION);
+        mockApi.awaitIdle();
+
+        record Config(String label, Duration deadline, boolean hedge, boolean limit) {}
+        var configs = List.of(
+                new Config("none", null, false, false),
+                new Config("deadline", TAIL_DEADLINE, false, false),
+                new Config("hedge", null, true, false),
+                new Config("limit", null, false, true),
+                new Config("deadline+hedge", TAIL_DEADLINE, true, false),
+                new Config("all three", TAIL_DEADLINE, true, true));
+
+        var results = new ArrayList<String>();
+        for (int rate : TAIL_RATES) {
+            for (Config config : configs) {
+                var guard = new RequestGuard(client, config.deadline(), config.hedge(),
+                        config.limit() ? new VegasLimiter(20, 1_000) : null);
+                var app = new App(client, mockApi.origin(), false, null, null, guard);
+                long requestsBefore = mockApi.requestCount();
+                mockApi.resetPeakInFlight();
+                TailResult result = app.runOpenLoop(rate, TAIL_RUN_DURATION);
+                results.add("%,6d | %-14s | %,9d | %,6d | %6.0f | %6.0f | %6.0f | %6.0f | %,8d | %,9d | %s".formatted(
+                        rate, config.label(), result.succeeded(), result.failed(), result.percentileMillis(50),
+                        result.percentileMillis(95), result.percentileMillis(99), result.percentileMillis(100),
+                        mockApi.requestCount() - requestsBefore, mockApi.peakInFlight(), guard.stats()));
+                System.out.printf("Finished '%s' at %,d lookups/s\n", config.label(), rate);
+                mockApi.awaitIdle();
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%6s | %-14s | %9s | %6s | %6s | %6s | %6s | %6s | %8s | %9s | %s\n", "rate/s", "guard",
+                "succeeded", "failed", "p50", "p95", "p99", "max", "requests", "peak busy", "guard stats");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println();
+        System.out.println("Latencies are in milliseconds for the lookups that succeeded, from each lookup's intended " +
+                           "start time.");
+        System.out.println("'requests' is what reached the mock API and 'peak busy' is the most it held at once, " +
+                           "queued or working.");
+    }
+
+    /**
+     * The outcome of an open-loop run: the sorted latencies of the calls that succeeded and the number that failed.
+     */
+    record TailResult(long[] sortedLatencyNanos, int failed) {
+        int succeeded() {
+            return sortedLatencyNanos.length;
+        }
+
+        double percentileMillis(double percentile) {
+            if (sortedLatencyNanos.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length) - 1;
+            return sortedLatencyNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    /**
+     * How to batch "message" calls: wait at most {@code window} after the first call of a batch, and send the batch
+     * early once it has {@code maxBatchSize} calls.
+     */
+    record MessageBatching(Duration window, int maxBatchSize) {}
+
+    /**
+     * A call to the "message" endpoint.
+     */
+    record MessageRequest(String name, int delay) {}
+
     /**
      * Execute a composition of HTTP requests to the Mock API. These requests telescope into each other and have error
      * handling.
@@ -50,53 +274,180 @@ public class ComposingMain {
     static class App {
 
         private final HttpClient client;
+        private final URI origin;
+        private final boolean verbose;
+        private final SingleFlightCache<String, String> geographyCache;
+        private final BatchLoader<MessageRequest, String> messageLoader;
+        private final RequestGuard requestGuard;
 
-        public App(HttpClient client) {
+        /**
+         * @param geographyCache  the cache for "containing geography" lookups, or null to always make a request
+         * @param messageBatching how to batch "message" calls, or null to make one request per call
+         * @param requestGuard    the guard to send every request through, or null to send them straight to the client
+         */
+        public App(HttpClient client, URI origin, boolean verbose, SingleFlightCache<String, String> geographyCache,
+                   MessageBatching messageBatching, RequestGuard requestGuard) {
             this.client = client;
+            this.origin = origin;
+            this.verbose = verbose;
+            this.geographyCache = geographyCache;
+            this.requestGuard = requestGuard;
+            this.messageLoader = messageBatching == null ? null : new BatchLoader<>(
+                    messageBatching.window(), messageBatching.maxBatchSize(), this::requestMessages);
         }
 
         private void execute() {
             var start = Instant.now();
 
             var m1Completable = requestContainingGeography("Minneapolis")
-                    .thenApply(geo -> requestContainingGeography(geo).join())
-                    .thenApply(geo -> requestContainingGeography(geo).join());
+                    .thenCompose(this::requestContainingGeography)
+                    .thenCompose(this::requestContainingGeography)
+                    .thenAccept(geo -> System.out.printf("Minneapolis is ultimately contained by: %s\n", geo));
+            // The chain above needs Hennepin County too. It asks later, so it gets this lookup from the cache.
+            var m5Completable = requestContainingGeography("Hennepin County")
+                    .thenAccept(geo -> System.out.printf("Hennepin County is contained by: %s\n", geo));
             var m2Completable = requestMessage("A", 1);
             var m3Completable = requestMessage("B", 2);
 
+            // There is no geography that contains the whole country, so this request fails. Recover with a default.
+            var m4Completable = requestContainingGeography("United States")
+                    .exceptionally(e -> {
+                        System.out.printf("Handled a failed request: %s\n", e.getCause().getMessage());
+                        return "(none)";
+                    });
+
             m1Completable.join();
             m2Completable.join();
             m3Completable.join();
+            m4Completable.join();
+            m5Completable.join();
 
             var finish = Instant.now();
             var duration = Duration.between(start, finish);
             System.out.printf("Finished. Execution time: %s\n", duration);
         }
 
+        /**
+         * Start the given number of "containing geography" chains at once and wait for all of them to finish.
+         */
+        void runChains(int chains) {
+            var futures = new CompletableFuture<?>[chains];
+            for (int i = 0; i < chains; i++) {
+                futures[i] = requestContainingGeography("Minneapolis")
+                        .thenCompose(this::requestContainingGeography)
+                        .thenCompose(this::requestContainingGeography);
+            }
+            CompletableFuture.allOf(futures).join();
+        }
+
+        /**
+         * Make the given number of "message" calls at once and wait for all of them to finish.
+         */
+        void runMessages(int calls) {
+            var futures = new CompletableFuture<?>[calls];
+            for (int i = 0; i < calls; i++) {
+                futures[i] = requestMessage("caller-" + i, 0);
+            }
+            CompletableFuture.allOf(futures).join();
+        }
+
+        /**
+         * Start "containing geography" lookups at the given rate for the given duration, wait for all of them to
+         * settle, and collect the latency of each one from its intended start time.
+         */
+        TailResult runOpenLoop(int ratePerSecond, Duration duration) {
+            int calls = (int) (ratePerSecond * duration.toMillis() / 1_000);
+            long intervalNanos = 1_000_000_000L / ratePerSecond;
+            var latencies = new long[calls];
+            var futures = new CompletableFuture<?>[calls];
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                long intended = start + i * intervalNanos;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int call = i;
+                futures[i] = fetchContainingGeography("Minneapolis")
+                        .thenRun(() -> latencies[call] = System.nanoTime() - intended);
+            }
+
+            int failed = 0;
+            var succeeded = new long[calls];
+            int count = 0;
+            for (int i = 0; i < calls; i++) {
+                try {
+                    futures[i].join();
+                    succeeded[count++] = latencies[i];
+                } catch (CompletionException e) {
+                    failed++;
+                }
+            }
+            long[] sorted = Arrays.copyOf(succeeded, count);
+            Arrays.sort(sorted);
+            return new TailResult(sorted, failed);
+        }
+
         /**
          * Build an HttpRequest to the mock API
          *
          * @param urlPath the URL path
          * @return a CompletableFuture that represents the request/response. The completion result will be a String
-         * containing the response body.
+         * containing the response body. The future completes exceptionally if the response status is not 200.
          */
         private CompletableFuture<String> request(String urlPath) {
-            var builder = HttpRequest.newBuilder().uri(URI.create(MOCK_API_ORIGIN).resolve(urlPath));
-            var future = client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString())
-                    .thenApply(HttpResponse::body);
-            future.thenAccept(body -> System.out.printf("Got response: %s\n", body));
+            return send(HttpRequest.newBuilder().uri(origin.resolve(urlPath)));
+        }
+
+        private CompletableFuture<String> send(HttpRequest.Builder builder) {
+            var httpRequest = builder.build();
+            var responseFuture = requestGuard == null
+                    ? client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                    : requestGuard.send(httpRequest);
+            var future = responseFuture
+                    .thenApply(response -> {
+                        if (response.statusCode() != 200) {
+                            throw new CompletionException(new IllegalStateException(
+                                    "Request to %s failed with status %d: %s".formatted(
+                                            httpRequest.uri().getRawPath(), response.statusCode(), response.body())));
+                        }
+                        return response.body();
+                    });
+            if (verbose) future.thenAccept(body -> System.out.printf("Got response: %s\n", body));
             return future;
         }
 
         /**
-         * Build a request for "/message"
+         * Build a request for "/message", or add the call to the next batch if batching is enabled
          *
          * @param name  the name
          * @param delay the delay
          */
         private CompletableFuture<String> requestMessage(String name, int delay) {
-            var encodedName = URLEncoder.encode(name, StandardCharsets.UTF_8);
-            return request(String.format("/message?name=%s&delay=%s", encodedName, delay));
+            if (messageLoader != null) {
+                return messageLoader.load(new MessageRequest(name, delay));
+            }
+            return request(String.format("/message?%s", encode(new MessageRequest(name, delay))));
+        }
+
+        /**
+         * Build a request for "/messages". The body has one line per call, in the same form as the "/message" query
+         * string, and the response has one greeting per line in the same order.
+         */
+        private CompletableFuture<List<String>> requestMessages(List<MessageRequest> messageRequests) {
+            var body = new StringBuilder();
+            for (MessageRequest messageRequest : messageRequests) {
+                body.append(encode(messageRequest)).append('\n');
+            }
+            var builder = HttpRequest.newBuilder()
+                    .uri(origin.resolve("/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+            return send(builder).thenApply(response -> response.lines().toList());
+        }
+
+        private static String encode(MessageRequest messageRequest) {
+            var encodedName = URLEncoder.encode(messageRequest.name(), StandardCharsets.UTF_8);
+            return "name=%s&delay=%s".formatted(encodedName, messageRequest.delay());
         }
 
         /**
@@ -105,8 +456,686 @@ public class ComposingMain {
          * @param geography the geography
          */
         private CompletableFuture<String> requestContainingGeography(String geography) {
-            var encodedGeo = URLEncoder.encode(geography, StandardCharsets.UTF_8);
+            if (geographyCache != null) {
+                return geographyCache.get(geography, this::fetchContainingGeography);
+            }
+            return fetchContainingGeography(geography);
+        }
+
+        private CompletableFuture<String> fetchContainingGeography(String geography) {
+            var encodedGeo = URLEncoder.encode(geography, StandardCharsets.UTF_8).replace("+", "%20");
             return request(String.format("/containing-geography/%s", encodedGeo));
         }
     }
+
+    /**
+     * A stand-in for the remote API, served in-process with the JDK's built-in HTTP server. Each request is handled
+     * on its own virtual thread, so a delayed response doesn't hold up other requests.
+     * <ul>
+     *     <li>{@code GET /message?name={name}&delay={seconds}} responds with a greeting after the configured delay
+     *     plus the given number of seconds.</li>
+     *     <li>{@code POST /messages} takes one {@code name={name}&delay={seconds}} line per message and responds with
+     *     one greeting per line, after the configured delay plus the longest of the given delays.</li>
+     *     <li>{@code GET /containing-geography/{geography}} responds with the geography that contains the given one,
+     *     or 404 if there isn't one, after the configured delay.</li>
+     * </ul>
+     * <p>
+     * {@link #injectFaults} makes the "containing geography" endpoint behave like a struggling backend: some responses
+     * are slow, and only a limited number of requests are worked on at once while the rest wait their turn.
+     */
+    static class MockApi implements AutoCloseable {
+
+        private static final Map<String, String> CONTAINING_GEOGRAPHIES = Map.of(
+                "Minneapolis", "Hennepin County",
+                "Hennepin County", "Minnesota",
+                "Minnesota", "United States");
+
+        private final HttpServer server;
+        private final Duration delay;
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+        private volatile Faults faults = null;
+        private volatile Semaphore capacity = null;
+
+        /**
+         * @param slowFraction the fraction of requests that are slow
+         * @param slowDelay    how much longer a slow request takes
+         * @param capacity     how many requests are worked on at once
+         */
+        record Faults(double slowFraction, Duration slowDelay, int capacity) {}
+
+        MockApi(Duration delay) throws IOException {
+            this.delay = delay;
+            // By default, the server only keeps 200 idle connections and closes the rest, which makes the client open
+            // new ones (and log an error for each closed one) when many requests are in flight.
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 10_000);
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.createContext("/message", this::message);
+            server.createContext("/messages", this::messages);
+            server.createContext("/containing-geography/", this::containingGeography);
+            server.start();
+        }
+
+        URI origin() {
+            return URI.create("http://%s:%d/".formatted(
+                    server.getAddress().getHostString(), server.getAddress().getPort()));
+        }
+
+        /**
+         * The number of requests the API has received.
+         */
+        long requestCount() {
+            return requestCount.get();
+        }
+
+        void injectFaults(Faults faults) {
+            this.capacity = new Semaphore(faults.capacity(), true);
+            this.faults = faults;
+        }
+
+        /**
+         * The most "containing geography" requests that were being handled at once, whether working or waiting for
+         * capacity, since the last reset.
+         */
+        int peakInFlight() {
+            return peakInFlight.get();
+        }
+
+        void resetPeakInFlight() {
+            peakInFlight.set(inFlight.get());
+        }
+
+        /**
+         * Wait until the API has no "containing geography" requests left. A client that gives up on a request doesn't
+         * stop the API from working on it.
+         */
+        void awaitIdle() {
+            while (inFlight.get() > 0) {
+                sleep(Duration.ofMillis(10));
+            }
+        }
+
+        private void message(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            MessageRequest messageRequest = parseMessageRequest(exchange.getRequestURI().getRawQuery());
+            sleep(delay.plusSeconds(messageRequest.delay()));
+            respond(exchange, 200, greeting(messageRequest));
+        }
+
+        private void messages(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            String body;
+            try (var requestBody = exchange.getRequestBody()) {
+                body = new String(requestBody.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            var greetings = new StringBuilder();
+            int longestDelay = 0;
+            for (String line : body.lines().toList()) {
+                MessageRequest messageRequest = parseMessageRequest(line);
+                longestDelay = Math.max(longestDelay, messageRequest.delay());
+                greetings.append(greeting(messageRequest)).append('\n');
+            }
+            sleep(delay.plusSeconds(longestDelay));
+            respond(exchange, 200, greetings.toString());
+        }
+
+        private static MessageRequest parseMessageRequest(String query) {
+            String name = "stranger";
+            int delaySeconds = 0;
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    String[] pair = parameter.split("=", 2);
+                    String value = pair.length == 2 ? URLDecoder.decode(pair[1], StandardCharsets.UTF_8) : "";
+                    switch (pair[0]) {
+                        case "name" -> name = value;
+                        case "delay" -> delaySeconds = Integer.parseInt(value);
+                        default -> { }
+                    }
+                }
+            }
+            return new MessageRequest(name, delaySeconds);
+        }
+
+        private static String greeting(MessageRequest messageRequest) {
+            return "Hello %s! (after a %d second delay)".formatted(messageRequest.name(), messageRequest.delay());
+        }
+
+        private void containingGeography(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                work();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            String geography = exchange.getRequestURI().getPath().substring("/containing-geography/".length());
+            String containing = CONTAINING_GEOGRAPHIES.get(geography);
+            if (containing == null) {
+                respond(exchange, 404, "No geography contains '%s'".formatted(geography));
+            } else {
+                respond(exchange, 200, containing);
+            }
+        }
+
+        private void work() {
+            Faults currentFaults = faults;
+            if (currentFaults == null) {
+                sleep(delay);
+                return;
+            }
+            Semaphore currentCapacity = capacity;
+            currentCapacity.acquireUninterruptibly();
+            try {
+                boolean slow = ThreadLocalRandom.current().nextDouble() < currentFaults.slowFraction();
+                sleep(slow ? delay.plus(currentFaults.slowDelay()) : delay);
+            } finally {
+                currentCapacity.release();
+            }
+        }
+
+        private static void sleep(Duration duration) {
+            try {
+                Thread.sleep(duration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (var responseBody = exchange.getResponseBody()) {
+                responseBody.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * A cache of asynchronous lookups with single-flight request coalescing.
+     * <p>
+     * The cache stores the lookup's future as soon as the lookup starts, not when it completes. A request for a key
+     * whose lookup is still in flight gets that same future, so any number of concurrent requests for one key share a
+     * single call to the loader. Once the lookup completes, its result stays in the cache until the TTL expires. A
+     * failed lookup is removed right away so that the next request retries it.
+     * <p>
+     * The cache holds at most {@code maxSize} entries and evicts the least recently used one when it's full.
+     */
+    static class SingleFlightCache<K, V> {
+
+        private final Duration ttl;
+        private final LinkedHashMap<K, Entry<V>> entries;
+        private long hits = 0;
+        private long misses = 0;
+        private long coalesced = 0;
+        private long evictions = 0;
+
+        SingleFlightCache(int maxSize, Duration ttl) {
+            this.ttl = ttl;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    if (size() > maxSize) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Get the value for the key, starting a lookup with the loader only if there is neither a cached value nor a
+         * lookup already in flight.
+         */
+        CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader) {
+            Entry<V> entry;
+            synchronized (this) {
+                Entry<V> existing = entries.get(key);
+                if (existing != null) {
+                    if (!existing.future.isDone()) {
+                        coalesced++;
+                        return existing.future.copy();
+                    }
+                    if (System.nanoTime() < existing.expiresAt) {
+                        hits++;
+                        return existing.future.copy();
+                    }
+                    entries.remove(key);
+                }
+                misses++;
+                entry = new Entry<>(new CompletableFuture<>());
+                entries.put(key, entry);
+            }
+
+            // Call the loader outside the lock. It only starts the lookup, but it's still foreign code. A loader that
+            // throws instead of returning a failed future must still fail and remove the entry, or every later caller
+            // for the key would wait on it forever.
+            CompletableFuture<V> lookup;
+            try {
+                lookup = loader.apply(key);
+            } catch (RuntimeException e) {
+                lookup = CompletableFuture.failedFuture(e);
+            }
+            lookup.whenComplete((value, error) -> {
+                if (error != null) {
+                    synchronized (this) {
+                        entries.remove(key, entry);
+                    }
+                    entry.future.completeExceptionally(error);
+                } else {
+                    entry.expiresAt = System.nanoTime() + ttl.toNanos();
+                    entry.future.complete(value);
+                }
+            });
+            return entry.future.copy();
+        }
+
+        synchronized String stats() {
+            return "hits=%d misses=%d coalesced=%d evictions=%d".formatted(hits, misses, coalesced, evictions);
+        }
+
+        /**
+         * A cached lookup. Until the future completes, the entry doesn't expire.
+         */
+        private static class Entry<V> {
+            final CompletableFuture<V> future;
+            volatile long expiresAt = Long.MAX_VALUE;
+
+            Entry(CompletableFuture<V> future) {
+                this.future = future;
+            }
+        }
+    }
+
+    /**
+     * A DataLoader-style batching loader.
+     * <p>
+     * Each call to {@link #load} gets its own future right away, but the key is held in a pending batch instead of
+     * being sent. The first key of a batch starts a timer; when the window runs out, or as soon as the batch reaches
+     * {@code maxBatchSize} keys, the whole batch goes to the batch function in one call. The batch function returns
+     * one value per key, in the same order, and each value completes its caller's future. If the batch fails, every
+     * caller in it sees the failure.
+     */
+    static class BatchLoader<K, V> {
+
+        private final Duration window;
+        private final int maxBatchSize;
+        private final Function<List<K>, CompletableFuture<List<V>>> batchFunction;
+        private List<K> pendingKeys = new ArrayList<>();
+        private List<CompletableFuture<V>> pendingFutures = new ArrayList<>();
+        private int batch = 0;
+        private long batches = 0;
+        private long keys = 0;
+        private int largestBatch = 0;
+
+        BatchLoader(Duration window, int maxBatchSize, Function<List<K>, CompletableFuture<List<V>>> batchFunction) {
+            this.window = window;
+            this.maxBatchSize = maxBatchSize;
+            this.batchFunction = batchFunction;
+        }
+
+        CompletableFuture<V> load(K key) {
+            var future = new CompletableFuture<V>();
+            List<K> fullKeys = null;
+            List<CompletableFuture<V>> fullFutures = null;
+            synchronized (this) {
+                if (pendingKeys.isEmpty()) {
+                    int currentBatch = batch;
+                    CompletableFuture.delayedExecutor(window.toNanos(), TimeUnit.NANOSECONDS)
+                            .execute(() -> windowExpired(currentBatch));
+                }
+                pendingKeys.add(key);
+                pendingFutures.add(future);
+                if (pendingKeys.size() >= maxBatchSize) {
+                    fullKeys = pendingKeys;
+                    fullFutures = pendingFutures;
+                    takePending();
+                }
+            }
+            if (fullKeys != null) {
+                dispatch(fullKeys, fullFutures);
+            }
+            return future;
+        }
+
+        private void windowExpired(int expiredBatch) {
+            List<K> keysToSend;
+            List<CompletableFuture<V>> futuresToComplete;
+            synchronized (this) {
+                // The batch may already have been sent because it filled up.
+                if (batch != expiredBatch || pendingKeys.isEmpty()) {
+                    return;
+                }
+                keysToSend = pendingKeys;
+                futuresToComplete = pendingFutures;
+                takePending();
+            }
+            dispatch(keysToSend, futuresToComplete);
+        }
+
+        private void takePending() {
+            batch++;
+            batches++;
+            keys += pendingKeys.size();
+            largestBatch = Math.max(largestBatch, pendingKeys.size());
+            pendingKeys = new ArrayList<>();
+            pendingFutures = new ArrayList<>();
+        }
+
+        private void dispatch(List<K> keysToSend, List<CompletableFuture<V>> futuresToComplete) {
+            CompletableFuture<List<V>> result;
+            try {
+                result = batchFunction.apply(keysToSend);
+            } catch (RuntimeException e) {
+                // A batch function that throws instead of returning a failed future still fails every key in the
+                // batch. Otherwise the callers would wait forever, and the exception would be lost on the thread that
+                // happened to send the batch.
+                result = CompletableFuture.failedFuture(e);
+            }
+            result.whenComplete((values, error) -> {
+                if (error == null && values.size() != keysToSend.size()) {
+                    error = new IllegalStateException("Sent a batch of %d keys but got %d values back".formatted(
+                            keysToSend.size(), values.size()));
+                }
+                for (int i = 0; i < futuresToComplete.size(); i++) {
+                    if (error != null) {
+                        futuresToComplete.get(i).completeExceptionally(error);
+                    } else {
+                        futuresToComplete.get(i).complete(values.get(i));
+                    }
+                }
+            });
+        }
+
+        synchronized String stats() {
+            return "batches=%d keys=%d mean=%.1f largest=%d".formatted(
+                    batches, keys, batches == 0 ? 0.0 : (double) keys / batches, largestBatch);
+        }
+    }
+
+    /**
+     * Sends requests to an {@link HttpClient} with up to three protections against a slow backend.
+     * <ul>
+     *     <li>A deadline: the call fails with a {@link TimeoutException} if it hasn't completed in time.</li>
+     *     <li>Hedging: if a request hasn't been answered within the p95 latency of recent requests, a duplicate
+     *     request is sent and whichever answers first wins. Hedges are capped at a small fraction of calls. Otherwise,
+     *     when the backend slows down, more requests pass the p95, more hedges are sent, and the extra load slows it
+     *     down further.</li>
+     *     <li>An adaptive concurrency limit: every request, hedges included, needs a permit from a
+     *     {@link VegasLimiter}. Calls that time out while waiting for a permit are never sent.</li>
+     * </ul>
+     * <p>
+     * A request that loses to its hedge or outlives its deadline is not aborted. Aborting an HTTP/1.1 exchange closes
+     * its connection, so the next request pays for a new one, and the backend keeps working on the request either way.
+     * It keeps its permit until it's answered, so the limiter sees the backend's real load and latency.
+     */
+    static class RequestGuard {
+
+        private static final int HEDGE_MIN_SAMPLES = 100;
+        private static final double HEDGE_BUDGET = 0.05;
+
+        private final HttpClient client;
+        private final Duration deadline;
+        private final boolean hedge;
+        private final VegasLimiter limiter;
+        private final LatencyWindow latencies = new LatencyWindow(1_000);
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+
+        /**
+         * @param deadline the deadline for each call, or null for no deadline
+         * @param hedge    whether to hedge calls that take longer than the p95 latency
+         * @param limiter  the concurrency limiter, or null for no limit
+         */
+        RequestGuard(HttpClient client, Duration deadline, boolean hedge, VegasLimiter limiter) {
+            this.client = client;
+            this.deadline = deadline;
+            this.hedge = hedge;
+            this.limiter = limiter;
+        }
+
+        CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+            calls.incrementAndGet();
+            var call = new CompletableFuture<HttpResponse<String>>();
+            if (deadline != null) {
+                call.orTimeout(deadline.toNanos(), TimeUnit.NANOSECONDS);
+                call.whenComplete((response, error) -> {
+                    if (error instanceof TimeoutException) timeouts.incrementAndGet();
+                });
+            }
+
+            attempt(request, call, () -> scheduleHedge(request, call)).whenComplete((response, error) -> {
+                if (error == null) {
+                    call.complete(response);
+                } else {
+                    call.completeExceptionally(error);
+                }
+            });
+            return call;
+        }
+
+        /**
+         * If hedging is on, send a duplicate request once the first one has gone unanswered for the recent p95
+         * latency. The timer starts when the first request is sent, not when the call is made, so time spent waiting
+         * for a permit doesn't trigger a hedge.
+         */
+        private void scheduleHedge(HttpRequest request, CompletableFuture<HttpResponse<String>> call) {
+            long hedgeAfterNanos = hedge ? latencies.p95(HEDGE_MIN_SAMPLES) : -1;
+            if (hedgeAfterNanos < 0) {
+                return;
+            }
+            CompletableFuture.delayedExecutor(hedgeAfterNanos, TimeUnit.NANOSECONDS).execute(() -> {
+                if (call.isDone() || hedges.get() >= HEDGE_BUDGET * calls.get()) {
+                    return;
+                }
+                hedges.incrementAndGet();
+                // A failed hedge is ignored. The first request still settles the call.
+                attempt(request, call, () -> { }).thenAccept(response -> {
+                    if (call.complete(response)) hedgeWins.incrementAndGet();
+                });
+            });
+        }
+
+        /**
+         * Send one request for the call once the limiter allows it, unless the call is settled by then.
+         */
+        private CompletableFuture<HttpResponse<String>> attempt(HttpRequest request, CompletableFuture<?> call,
+                                                                Runnable onSent) {
+            CompletableFuture<Void> permit = limiter == null ? CompletableFuture.completedFuture(null) : limiter.acquire();
+            if (!permit.isDone()) {
+                // Stop waiting as soon as the call is settled, so that the waiter doesn't take a permit only to give it
+                // straight back.
+                call.whenComplete((response, error) -> limiter.abandon(permit));
+            }
+            return permit.thenCompose(ignored -> {
+                if (call.isDone()) {
+                    if (limiter != null) limiter.onIgnore();
+                    return CompletableFuture.failedFuture(new IllegalStateException("The call was already settled"));
+                }
+                long start = System.nanoTime();
+                var exchange = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+                onSent.run();
+                return exchange.whenComplete((response, error) -> {
+                    long elapsed = System.nanoTime() - start;
+                    if (error == null) {
+                        latencies.record(elapsed);
+                    }
+                    if (limiter == null) {
+                        return;
+                    }
+                    if (error == null) {
+                        limiter.onSuccess(elapsed);
+                    } else {
+                        limiter.onDropped();
+                    }
+                });
+            });
+        }
+
+        String stats() {
+            var stats = "timeouts=%d hedges=%d hedge wins=%d".formatted(timeouts.get(), hedges.get(), hedgeWins.get());
+            return limiter == null ? stats : stats + " " + limiter.stats();
+        }
+    }
+
+    /**
+     * The latencies of the most recent requests, with a p95 that's recomputed every so often rather than on every
+     * read.
+     */
+    static class LatencyWindow {
+
+        private static final int RECOMPUTE_EVERY = 100;
+
+        private final long[] samples;
+        private int count = 0;
+        private long p95 = -1;
+
+        LatencyWindow(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void record(long nanos) {
+            samples[count % samples.length] = nanos;
+            count++;
+            if (count % RECOMPUTE_EVERY == 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, samples.length));
+                Arrays.sort(sorted);
+                p95 = sorted[(int) Math.ceil(0.95 * sorted.length) - 1];
+            }
+        }
+
+        /**
+         * The p95 latency in nanoseconds, or -1 if there are fewer than {@code minSamples} samples.
+         */
+        synchronized long p95(int minSamples) {
+            return count < minSamples ? -1 : p95;
+        }
+    }
+
+    /**
+     * An adaptive concurrency limit in the style of TCP Vegas.
+     * <p>
+     * The limiter keeps the lowest latency it has seen as the latency of an unloaded backend. For each successful
+     * request, it estimates how many requests were queued at the backend: {@code limit * (1 - minLatency / latency)}.
+     * If the estimate is small, the backend has room and the limit goes up. If it is large, requests are piling up and
+     * the limit goes down. A failed request also lowers the limit. Each step is {@code log10(limit)}, at least one,
+     * so a large limit moves faster than a small one.
+     * <p>
+     * Callers over the limit wait without blocking a thread: {@link #acquire} returns a future that completes when a
+     * permit is free. The newest waiter gets the next permit. Under overload, the oldest waiters are the ones most
+     * likely to hit their deadline before they are answered, so serving them first would waste the backend on calls
+     * that fail anyway. A caller that no longer needs its permit, say because its deadline passed, should
+     * {@link #abandon} it. Otherwise it stays in line, and under overload the line fills up with callers that give their
+     * permit straight back. Every acquired permit must be given back with exactly one of {@link #onSuccess},
+     * {@link #onDropped} or {@link #onIgnore}.
+     */
+    static class VegasLimiter {
+
+        private final int maxLimit;
+        private final LinkedHashSet<CompletableFuture<Void>> waiting = new LinkedHashSet<>();
+        private double limit;
+        private int inFlight = 0;
+        private long minLatency = Long.MAX_VALUE;
+        private int lowestLimit;
+        private int highestLimit;
+
+        VegasLimiter(int initialLimit, int maxLimit) {
+            this.maxLimit = maxLimit;
+            this.limit = initialLimit;
+            this.lowestLimit = initialLimit;
+            this.highestLimit = initialLimit;
+        }
+
+        CompletableFuture<Void> acquire() {
+            synchronized (this) {
+                if (inFlight < (int) limit) {
+                    inFlight++;
+                    return CompletableFuture.completedFuture(null);
+                }
+                var permit = new CompletableFuture<Void>();
+                waiting.add(permit);
+                return permit;
+            }
+        }
+
+        /**
+         * Stop waiting for a permit. The permit is cancelled if it hasn't been granted yet. A permit that has already
+         * been granted must still be given back.
+         */
+        void abandon(CompletableFuture<Void> permit) {
+            boolean removed;
+            synchronized (this) {
+                removed = waiting.remove(permit);
+            }
+            if (removed) {
+                permit.cancel(false);
+            }
+        }
+
+        void onSuccess(long latencyNanos) {
+            List<CompletableFuture<Void>> granted;
+            synchronized (this) {
+                minLatency = Math.min(minLatency, latencyNanos);
+                double queued = limit * (1 - (double) minLatency / latencyNanos);
+                double step = step();
+                if (queued < 3 * step) {
+                    limit = Math.min(maxLimit, limit + step);
+                } else if (queued > 6 * step) {
+                    limit = Math.max(1, limit - step);
+                }
+                granted = release();
+            }
+            granted.forEach(permit -> permit.complete(null));
+        }
+
+        void onDropped() {
+            List<CompletableFuture<Void>> granted;
+            synchronized (this) {
+                limit = Math.max(1, limit - step());
+                granted = release();
+            }
+            granted.forEach(permit -> permit.complete(null));
+        }
+
+        void onIgnore() {
+            List<CompletableFuture<Void>> granted;
+            synchronized (this) {
+                granted = release();
+            }
+            granted.forEach(permit -> permit.complete(null));
+        }
+
+        private double step() {
+            return Math.max(1, Math.log10(limit));
+        }
+
+        /**
+         * Give back a permit and hand out as many as the limit now allows. The permits are completed by the caller,
+         * outside the lock, because completing one runs the waiting request.
+         */
+        private List<CompletableFuture<Void>> release() {
+            inFlight--;
+            lowestLimit = Math.min(lowestLimit, (int) limit);
+            highestLimit = Math.max(highestLimit, (int) limit);
+            var granted = new ArrayList<CompletableFuture<Void>>();
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                granted.add(waiting.removeLast());
+            }
+            return granted;
+        }
+
+        synchronized String stats() {
+            return "limit=%d (range %d-%d)".formatted((int) limit, lowestLimit, highestLimit);
+        }
+    }
 }
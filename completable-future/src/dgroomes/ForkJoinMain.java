@@ -0,0 +1,196 @@
+package dgroomes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+import static java.lang.System.out;
+
+/**
+ * A CPU-bound workload, in contrast to the sleeping {@code Worker} in {@code CompletableFuturesMain}, run three ways on
+ * a {@link ForkJoinPool}.
+ * <p>
+ * The workload is a reduction over a large array: every element goes through a few rounds of a hash mixing function
+ * and the results are summed. There's no I/O and no waiting, so the only way to go faster is to use more cores, and
+ * the only costs of splitting the work are the overhead of the tasks themselves and the memory bandwidth they share.
+ * <ul>
+ *     <li>{@link RecursiveTask}: split the range in half until it's under the threshold, fork one half and compute
+ *     the other.</li>
+ *     <li>A parallel stream. A parallel stream runs in the pool of the thread that starts it, so starting it from a
+ *     task in a custom pool controls its parallelism. The stream decides its own split sizes.</li>
+ *     <li>{@link CompletableFuture} fan-out: one {@code supplyAsync} per threshold-sized chunk, on the pool, summed
+ *     once they are all done.</li>
+ * </ul>
+ * The program reports the time and the speedup over a plain loop for each pool parallelism and split threshold. A pool
+ * with more parallelism than the machine has cores can't go any faster than one with as many.
+ */
+public class ForkJoinMain {
+
+    private static final int ARRAY_SIZE = 10_000_000;
+    private static final int MIX_ROUNDS = 4;
+    private static final int[] PARALLELISMS = {1, 2, 4, 8};
+    private static final int[] THRESHOLDS = {1_000, 10_000, 100_000, 1_000_000};
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        out.printf("Available processors: %d. Array size: %,d. Each result is the median of %d runs.\n",
+                Runtime.getRuntime().availableProcessors(), ARRAY_SIZE, MEASURED_RUNS);
+
+        long[] data = new Random(42).longs(ARRAY_SIZE).toArray();
+        long expected = sequentialSum(data, 0, data.length);
+        long baselineNanos = median(() -> sequentialSum(data, 0, data.length), expected);
+        out.printf("Plain loop: %.1fms\n", baselineNanos / 1e6);
+        out.println();
+
+        var results = new ArrayList<String>();
+        for (int parallelism : PARALLELISMS) {
+            var pool = new ForkJoinPool(parallelism);
+            try {
+                for (int threshold : THRESHOLDS) {
+                    long nanos = median(() -> pool.invoke(new SumTask(data, 0, data.length, threshold)), expected);
+                    results.add(row("RecursiveTask", parallelism, "%,d".formatted(threshold), nanos, baselineNanos));
+                }
+                long streamNanos = median(() -> pool.submit(() -> parallelStreamSum(data)).get(), expected);
+                results.add(row("parallel stream", parallelism, "(stream's own)", streamNanos, baselineNanos));
+                for (int threshold : THRESHOLDS) {
+                    long nanos = median(() -> fanOutSum(data, threshold, pool), expected);
+                    results.add(row("CF fan-out", parallelism, "%,d".formatted(threshold), nanos, baselineNanos));
+                }
+            } finally {
+                pool.close();
+            }
+            out.printf("Finished parallelism %d\n", parallelism);
+        }
+
+        out.println();
+        out.printf("%-15s | %11s | %14s | %9s | %7s\n", "implementation", "parallelism", "threshold", "time", "speedup");
+        for (String result : results) {
+            out.println(result);
+        }
+        out.println();
+        out.println("'speedup' is the plain loop's time divided by the implementation's time.");
+    }
+
+    private static String row(String implementation, int parallelism, String threshold, long nanos, long baselineNanos) {
+        return "%-15s | %11d | %14s | %7.1fms | %6.2fx".formatted(implementation, parallelism, threshold, nanos / 1e6,
+                (double) baselineNanos / nanos);
+    }
+
+    /**
+     * A few rounds of the SplitMix64 finalizer. It's cheap enough that task overhead matters at small thresholds, but
+     * expensive enough that the workload isn't limited by memory bandwidth alone.
+     */
+    static long mix(long value) {
+        long z = value;
+        for (int i = 0; i < MIX_ROUNDS; i++) {
+            z += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+        }
+        return z;
+    }
+
+    static long sequentialSum(long[] data, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += mix(data[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Sum a range by splitting it in half until it's no larger than the threshold.
+     */
+    static class SumTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] data;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        SumTask(long[] data, int from, int to, int threshold) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= threshold) {
+                return sequentialSum(data, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            var left = new SumTask(data, from, middle, threshold);
+            left.fork();
+            long right = new SumTask(data, middle, to, threshold).compute();
+            return left.join() + right;
+        }
+    }
+
+    /**
+     * This runs in whichever pool the calling thread belongs to.
+     */
+    static long parallelStreamSum(long[] data) {
+        return IntStream.range(0, data.length).parallel().mapToLong(i -> mix(data[i])).sum();
+    }
+
+    /**
+     * Fan out one future per chunk and sum the results. Unlike the {@link RecursiveTask}, every chunk is submitted up
+     * front by the calling thread, so a small threshold means many submissions from one thread.
+     */
+    static long fanOutSum(long[] data, int threshold, ForkJoinPool pool) {
+        var futures = new ArrayList<CompletableFuture<Long>>();
+        for (int from = 0; from < data.length; from += threshold) {
+            int chunkFrom = from;
+            int chunkTo = Math.min(data.length, from + threshold);
+            futures.add(CompletableFuture.supplyAsync(() -> sequentialSum(data, chunkFrom, chunkTo), pool));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).join();
+        long sum = 0;
+        for (CompletableFuture<Long> future : futures) {
+            sum += future.join();
+        }
+        return sum;
+    }
+
+    interface Run {
+        long sum() throws InterruptedException, ExecutionException;
+    }
+
+    /**
+     * Warm up, then time the measured runs and return the median. Every run's result is checked against the plain
+     * loop's.
+     */
+    private static long median(Run run, long expected) throws InterruptedException, ExecutionException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            check(run.sum(), expected);
+        }
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            long sum = run.sum();
+            times.add(System.nanoTime() - start);
+            check(sum, expected);
+        }
+        long[] sorted = times.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void check(long sum, long expected) {
+        if (sum != expected) {
+            throw new IllegalStateException("Expected a sum of %d but got %d".formatted(expected, sum));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package dgroomes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+
+import static java.lang.System.out;
+
+/**
+ * The same three pieces of simulated work as {@code CompletableFuturesMain}, run with structured concurrency
+ * ({@link StructuredTaskScope}, a preview API in Java 21 described by <a href="https://openjdk.org/jeps/453">JEP 453</a>)
+ * and compared with the {@link CompletableFuture} version when one of the pieces fails.
+ * <p>
+ * {@code App.execute} in {@code CompletableFuturesMain} kicks off the work and joins the futures one after another. When
+ * a piece of work fails, the caller only finds out once it gets around to joining that future, and the other pieces
+ * keep running to completion after the caller has given up. Nothing cancels them, and cancelling a
+ * {@link CompletableFuture} wouldn't interrupt its thread anyway.
+ * <p>
+ * A {@link StructuredTaskScope.ShutdownOnFailure} scope shuts down as soon as any subtask fails. It interrupts the
+ * other subtasks and its {@code join} returns right away. A {@link StructuredTaskScope.ShutdownOnSuccess} scope does
+ * the same when the first subtask succeeds, which fits a race between redundant calls where only the first answer
+ * matters. That one is compared with {@link CompletableFuture#anyOf}.
+ * <p>
+ * For each run, the program reports the wall time and how much work kept running after the caller returned.
+ */
+public class StructuredConcurrencyMain {
+
+    public static void main(String[] args) throws InterruptedException {
+        var scenarios = List.of(
+                new Scenario("no failure", null, null),
+                new Scenario("small fails at 1s", Amount.SMALL, Duration.ofSeconds(1)),
+                new Scenario("large fails at 1s", Amount.LARGE, Duration.ofSeconds(1)));
+
+        var results = new ArrayList<String>();
+        for (Scenario scenario : scenarios) {
+            for (Policy policy : List.of(Policy.JOIN_IN_ORDER, Policy.SHUTDOWN_ON_FAILURE)) {
+                out.printf("Running '%s' with %s...\n", scenario.label(), policy.label);
+                results.add(run(policy, scenario));
+            }
+        }
+        var race = new Scenario("first answer wins", null, null);
+        for (Policy policy : List.of(Policy.ANY_OF, Policy.SHUTDOWN_ON_SUCCESS)) {
+            out.printf("Running '%s' with %s...\n", race.label(), policy.label);
+            results.add(run(policy, race));
+        }
+
+        out.println();
+        out.printf("%-18s | %-20s | %9s | %-26s | %11s | %17s\n", "scenario", "policy", "wall time", "outcome",
+                "interrupted", "run after return");
+        for (String result : results) {
+            out.println(result);
+        }
+        out.println();
+        out.println("'run after return' is the total time the pieces of work kept running after the caller had its answer.");
+    }
+
+    enum Amount {
+
+        SMALL(1), MEDIUM(2), LARGE(4);
+
+        private final Duration latency;
+
+        Amount(int latencySeconds) {
+            this.latency = Duration.ofSeconds(latencySeconds);
+        }
+    }
+
+    /**
+     * @param failing   the piece of work that fails, or null if none does
+     * @param failAfter how long the failing piece runs before it fails
+     */
+    record Scenario(String label, Amount failing, Duration failAfter) {}
+
+    enum Policy {
+        JOIN_IN_ORDER("CF join in order"),
+        SHUTDOWN_ON_FAILURE("ShutdownOnFailure"),
+        ANY_OF("CF anyOf"),
+        SHUTDOWN_ON_SUCCESS("ShutdownOnSuccess");
+
+        final String label;
+
+        Policy(String label) {
+            this.label = label;
+        }
+    }
+
+    private static String run(Policy policy, Scenario scenario) throws InterruptedException {
+        var tracker = new Tracker(Amount.values().length);
+        long start = System.nanoTime();
+        String outcome;
+        try {
+            outcome = switch (policy) {
+                case JOIN_IN_ORDER -> joinInOrder(scenario, tracker);
+                case SHUTDOWN_ON_FAILURE -> shutdownOnFailure(scenario, tracker);
+                case ANY_OF -> anyOf(scenario, tracker);
+                case SHUTDOWN_ON_SUCCESS -> shutdownOnSuccess(scenario, tracker);
+            };
+        } catch (ExecutionException | CompletionException e) {
+            outcome = e.getCause().getMessage();
+        }
+        long returned = System.nanoTime();
+
+        // Wait for every piece of work to stop, however it stops, so that the work that ran after the return counts.
+        tracker.awaitAll();
+        return "%-18s | %-20s | %8.2fs | %-26s | %11d | %16.2fs".formatted(scenario.label(), policy.label,
+                (returned - start) / 1e9, outcome, tracker.interrupted(), tracker.nanosAfter(returned) / 1e9);
+    }
+
+    /**
+     * The {@code CompletableFuturesMain} way: kick off all the work, then join the futures one after another.
+     */
+    private static String joinInOrder(Scenario scenario, Tracker tracker) {
+        var executor = Executors.newVirtualThreadPerTaskExecutor();
+        var futures = new ArrayList<CompletableFuture<String>>();
+        for (Amount amount : Amount.values()) {
+            futures.add(CompletableFuture.supplyAsync(() -> tracker.work(amount, scenario), executor));
+        }
+        // Deliberately not closing the executor here: close() would wait for the work that the caller abandoned.
+        var descriptions = new ArrayList<String>();
+        for (CompletableFuture<String> future : futures) {
+            descriptions.add(future.join());
+        }
+        return "done: " + String.join(", ", descriptions);
+    }
+
+    private static String shutdownOnFailure(Scenario scenario, Tracker tracker)
+            throws InterruptedException, ExecutionException {
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            var subtasks = new ArrayList<Subtask<String>>();
+            for (Amount amount : Amount.values()) {
+                subtasks.add(scope.fork(() -> tracker.work(amount, scenario)));
+            }
+            scope.join().throwIfFailed();
+
+            var descriptions = new ArrayList<String>();
+            for (Subtask<String> subtask : subtasks) {
+                descriptions.add(subtask.get());
+            }
+            return "done: " + String.join(", ", descriptions);
+        }
+    }
+
+    /**
+     * Race the pieces of work and take the first answer.
+     */
+    private static String anyOf(Scenario scenario, Tracker tracker) {
+        var executor = Executors.newVirtualThreadPerTaskExecutor();
+        var futures = new CompletableFuture<?>[Amount.values().length];
+        for (Amount amount : Amount.values()) {
+            futures[amount.ordinal()] = CompletableFuture.supplyAsync(() -> tracker.work(amount, scenario), executor);
+        }
+        return "first: " + CompletableFuture.anyOf(futures).join();
+    }
+
+    private static String shutdownOnSuccess(Scenario scenario, Tracker tracker)
+            throws InterruptedException, ExecutionException {
+        try (var scope = new StructuredTaskScope.ShutdownOnSuccess<String>()) {
+            for (Amount amount : Amount.values()) {
+                scope.fork(() -> tracker.work(amount, scenario));
+            }
+            scope.join();
+            return "first: " + scope.result();
+        }
+    }
+
+    /**
+     * Runs the simulated work and keeps track of when each piece stops and whether it was interrupted.
+     */
+    static class Tracker {
+
+        private final List<Long> endNanos = new ArrayList<>();
+        private final int pieces;
+        private int interrupted = 0;
+
+        Tracker(int pieces) {
+            this.pieces = pieces;
+        }
+
+        /**
+         * Sleep for the amount's latency, or fail part way through if this is the scenario's failing piece. The
+         * sleep responds to interruption, like blocking I/O would.
+         */
+        String work(Amount amount, Scenario scenario) {
+            long start = System.nanoTime();
+            boolean fails = amount == scenario.failing();
+            try {
+                Thread.sleep(fails ? scenario.failAfter() : amount.latency);
+                if (fails) {
+                    throw new IllegalStateException("failed: %s".formatted(amount.name().toLowerCase()));
+                }
+                return amount.name().toLowerCase();
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    interrupted++;
+                }
+                throw new IllegalStateException("interrupted after %dms".formatted((System.nanoTime() - start) / 1_000_000), e);
+            } finally {
+                synchronized (this) {
+                    endNanos.add(System.nanoTime());
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void awaitAll() throws InterruptedException {
+            while (endNanos.size() < pieces) {
+                wait();
+            }
+        }
+
+        synchronized int interrupted() {
+            return interrupted;
+        }
+
+        /**
+         * The total time the pieces of work ran past the given time.
+         */
+        synchronized long nanosAfter(long time) {
+            long total = 0;
+            for (long end : endNanos) {
+                total += Math.max(0, end - time);
+            }
+            return total;
+        }
+    }
+}
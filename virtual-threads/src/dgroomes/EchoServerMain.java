@@ -0,0 +1,429 @@
+package dgroomes;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * A loopback TCP request/response server built two ways, driven by a load client with many connections.
+ * <ul>
+ *     <li>Thread per connection: blocking {@link ServerSocket} and {@link Socket} code, with a virtual thread for each
+ *     connection. It reads like the simplest possible server.</li>
+ *     <li>Event loop: one platform thread runs a {@link Selector} over non-blocking channels, and each connection is a
+ *     little state machine with its own buffers. This is how servers handled many connections before virtual
+ *     threads.</li>
+ * </ul>
+ * The protocol is a 4-byte length followed by that many bytes, and the server answers each request by echoing it back.
+ * <p>
+ * The load client opens every connection, each on its own virtual thread, and waits until they are all connected.
+ * Then it measures the heap, and every connection sends requests one after another for a fixed time. The program
+ * reports requests per second, the p50 and p99 latency, the heap per connection and the peak number of platform
+ * threads for each design. The client and the server run in the same process, so every connection uses two file
+ * descriptors, and connection counts that don't fit the process's file descriptor limit are skipped.
+ */
+public class EchoServerMain {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int[] CONNECTION_COUNTS = {100, 1_000, 5_000, 10_000, 30_000};
+    private static final int PAYLOAD_SIZE = 100;
+    private static final Duration RUN_DURATION = Duration.ofSeconds(3);
+    private static final int SPARE_FILE_DESCRIPTORS = 500;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        long maxFileDescriptors = maxFileDescriptors();
+        log.info("=== Echo Server: Thread per Connection vs Event Loop ===");
+        log.info("Payload: %d bytes, Run duration: %s, File descriptor limit: %,d, Available processors: %d".formatted(
+                PAYLOAD_SIZE, RUN_DURATION, maxFileDescriptors, Runtime.getRuntime().availableProcessors()));
+        log.info("");
+
+        // Warm up both servers and the client so that the first measured run isn't also paying for class loading and
+        // compilation.
+        for (Design design : Design.values()) {
+            run(design, CONNECTION_COUNTS[0]);
+        }
+
+        var results = new ArrayList<String>();
+        for (int connections : CONNECTION_COUNTS) {
+            for (Design design : Design.values()) {
+                if (2L * connections + SPARE_FILE_DESCRIPTORS > maxFileDescriptors) {
+                    results.add("%-15s | %,11d | skipped: needs %,d file descriptors".formatted(
+                            design.label, connections, 2 * connections + SPARE_FILE_DESCRIPTORS));
+                    continue;
+                }
+                log.info("Running the %s server with %,d connections...".formatted(design.label, connections));
+                Result result = run(design, connections);
+                results.add("%-15s | %,11d | %,10d | %,10.0f | %7.2fms | %7.2fms | %,10.0f | %,12d".formatted(
+                        design.label, connections, result.requests(), result.requests() / (RUN_DURATION.toNanos() / 1e9),
+                        result.percentileMillis(50), result.percentileMillis(99),
+                        (double) result.heapBytes() / connections, result.peakThreads()));
+            }
+        }
+
+        log.info("");
+        log.info("=== Results ===");
+        log.info("%-15s | %11s | %10s | %10s | %9s | %9s | %10s | %12s".formatted("server", "connections",
+                "requests", "req/s", "p50", "p99", "heap/conn", "peak threads"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("'heap/conn' is the heap growth with every connection open and idle, divided by the number of");
+        log.info("connections. It includes the client's side of each connection, which is the same for both designs.");
+        log.info("With only 100 connections, a few hundred KB of heap noise outweighs it.");
+        log.info("'peak threads' counts platform threads only.");
+    }
+
+    enum Design {
+        THREAD_PER_CONNECTION("virtual threads"),
+        EVENT_LOOP("selector");
+
+        final String label;
+
+        Design(String label) {
+            this.label = label;
+        }
+    }
+
+    interface EchoServer extends Closeable {
+        int port();
+    }
+
+    record Result(long requests, long[] sortedLatencyNanos, long heapBytes, int peakThreads) {
+        double percentileMillis(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length) - 1;
+            return sortedLatencyNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    private static Result run(Design design, int connections) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long heapBefore = usedHeapAfterGc();
+        threads.resetPeakThreadCount();
+
+        try (EchoServer server = switch (design) {
+            case THREAD_PER_CONNECTION -> new ThreadPerConnectionServer();
+            case EVENT_LOOP -> new EventLoopServer();
+        }) {
+            var connected = new CountDownLatch(connections);
+            var go = new CountDownLatch(1);
+            var recorders = new ArrayList<LatencyRecorder>();
+            var clients = new ArrayList<Future<?>>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < connections; i++) {
+                    var recorder = new LatencyRecorder();
+                    recorders.add(recorder);
+                    clients.add(executor.submit(() -> {
+                        client(server.port(), connected, go, recorder);
+                        return null;
+                    }));
+                }
+                connected.await();
+                // Give the server a moment to get to every connection before measuring.
+                Thread.sleep(200);
+                long heapBytes = usedHeapAfterGc() - heapBefore;
+                go.countDown();
+
+                for (Future<?> client : clients) {
+                    try {
+                        client.get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("A client failed", e);
+                    }
+                }
+
+                long requests = 0;
+                for (LatencyRecorder recorder : recorders) {
+                    requests += recorder.count;
+                }
+                var latencies = new long[(int) requests];
+                int offset = 0;
+                for (LatencyRecorder recorder : recorders) {
+                    System.arraycopy(recorder.samples, 0, latencies, offset, recorder.count);
+                    offset += recorder.count;
+                }
+                Arrays.sort(latencies);
+                return new Result(requests, latencies, heapBytes, threads.getPeakThreadCount());
+            }
+        }
+    }
+
+    /**
+     * Connect, wait for every other client to connect, then send requests one after another until the run is over.
+     */
+    private static void client(int port, CountDownLatch connected, CountDownLatch go, LatencyRecorder recorder)
+            throws IOException, InterruptedException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            var payload = new byte[PAYLOAD_SIZE];
+            var response = new byte[PAYLOAD_SIZE];
+            connected.countDown();
+            go.await();
+
+            long end = System.nanoTime() + RUN_DURATION.toNanos();
+            for (long start = System.nanoTime(); start < end; start = System.nanoTime()) {
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.flush();
+                int length = in.readInt();
+                if (length != PAYLOAD_SIZE) {
+                    throw new IllegalStateException("Expected a %d-byte response but got %d".formatted(PAYLOAD_SIZE, length));
+                }
+                in.readFully(response);
+                recorder.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * A growable array of latency samples, one per connection so that recording doesn't need a lock.
+     */
+    static class LatencyRecorder {
+        long[] samples = new long[256];
+        int count = 0;
+
+        void add(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[count++] = nanos;
+        }
+    }
+
+    /**
+     * Blocking I/O with a virtual thread per connection. Each connection's thread reads a request, writes the response
+     * and loops. A blocked read parks the virtual thread and frees its carrier.
+     */
+    static class ThreadPerConnectionServer implements EchoServer {
+        private final ServerSocket serverSocket;
+        private final Thread acceptor;
+        private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+        ThreadPerConnectionServer() throws IOException {
+            serverSocket = new ServerSocket(0, 10_000, InetAddress.getLoopbackAddress());
+            acceptor = Thread.ofVirtual().name("acceptor").start(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        connections.execute(() -> handle(socket));
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed.
+                }
+            });
+        }
+
+        private static void handle(Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                var payload = new byte[PAYLOAD_SIZE];
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    if (length < 0 || length > payload.length) {
+                        throw new IOException("Invalid request length %d".formatted(length));
+                    }
+                    in.readFully(payload, 0, length);
+                    out.writeInt(length);
+                    out.write(payload, 0, length);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client went away.
+            }
+        }
+
+        @Override
+        public int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connections.close();
+        }
+    }
+
+    /**
+     * Non-blocking I/O on one platform thread. The selector reports which connections can be read from or written to,
+     * and each connection keeps the part of a request it has read so far and the part of a response it still has to
+     * write. While a response is being written, the connection stops reading, which is this server's backpressure.
+     */
+    static class EventLoopServer implements EchoServer {
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        private final Thread loop;
+        private volatile boolean running = true;
+
+        EventLoopServer() throws IOException {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 10_000);
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            loop = Thread.ofPlatform().name("event-loop").start(this::loop);
+        }
+
+        static class Connection {
+            final ByteBuffer in = ByteBuffer.allocate(4 + PAYLOAD_SIZE);
+            final ByteBuffer out = ByteBuffer.allocate(4 + PAYLOAD_SIZE);
+        }
+
+        private void loop() {
+            try {
+                while (running) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException e) {
+                            // The client went away.
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // Closing anyway.
+                    }
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.register(selector, SelectionKey.OP_READ, new Connection());
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            var channel = (SocketChannel) key.channel();
+            var connection = (Connection) key.attachment();
+            if (channel.read(connection.in) == -1) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+            respondIfComplete(key, connection);
+        }
+
+        /**
+         * If a whole request has arrived, move it to the output buffer and start writing it.
+         */
+        private void respondIfComplete(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer in = connection.in;
+            if (in.position() < 4) {
+                return;
+            }
+            int length = in.getInt(0);
+            if (length < 0 || length > PAYLOAD_SIZE) {
+                throw new IOException("Invalid request length %d".formatted(length));
+            }
+            if (in.position() < 4 + length) {
+                return;
+            }
+
+            in.flip();
+            ByteBuffer frame = in.slice(0, 4 + length);
+            connection.out.clear();
+            connection.out.put(frame);
+            connection.out.flip();
+            in.position(4 + length);
+            in.compact();
+            write(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            var channel = (SocketChannel) key.channel();
+            var connection = (Connection) key.attachment();
+            channel.write(connection.out);
+            if (connection.out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // A client may have sent its next request before this response was done.
+            respondIfComplete(key, connection);
+        }
+
+        @Override
+        public int port() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        // A single GC doesn't always reclaim everything left over from the previous run, so collect twice.
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long maxFileDescriptors() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean unix) {
+            return unix.getMaxFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+}
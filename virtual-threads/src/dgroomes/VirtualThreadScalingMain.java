@@ -0,0 +1,393 @@
+package dgroomes;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * How the JVM behaves with hundreds of thousands to a million virtual threads that block, and what happens when a
+ * virtual thread blocks while pinned to its carrier thread.
+ * <p>
+ * The scaling part starts N tasks on a virtual thread per task and on a bounded pool of platform threads. Every task
+ * first blocks at a gate. Once as many tasks as the executor can run at once are blocked there, the program measures
+ * the heap and the process's resident memory, and opens the gate. Then each task blocks for a second, either by
+ * sleeping or by waiting on a future that another thread completes (the way a virtual thread waits for a response
+ * that an I/O poller hands it). The program reports how long it took to get every thread started and blocked, the
+ * memory per blocked thread, and the throughput in tasks per second after the gate opened.
+ * <p>
+ * Run it with a fixed, pre-touched heap ({@code -Xms2g -Xmx2g -XX:+AlwaysPreTouch}) so that the growth in resident
+ * memory is all outside the heap, where platform thread stacks live. Otherwise, the heap growing and shrinking makes
+ * that number noisy.
+ * <p>
+ * The pinning part takes the {@code SimulatedDatabase} from the {@code buffering-channels} project, whose
+ * {@code write} method sleeps inside a {@code synchronized} method. In Java 21, a virtual thread that blocks inside
+ * {@code synchronized} can't unmount, so it pins its carrier thread and the carrier can't run any other virtual
+ * thread. The program records JFR {@code jdk.VirtualThreadPinned} events while many virtual threads write to the
+ * database, and compares it with the same database guarded by a {@link ReentrantLock}, which doesn't pin. A heartbeat
+ * virtual thread measures how late it gets scheduled in each case.
+ */
+public class VirtualThreadScalingMain {
+    private static final Logger log = Logger.getAnonymousLogger();
+
+    private static final int[] TASK_COUNTS = {10_000, 100_000, 1_000_000};
+    private static final Duration BLOCK_TIME = Duration.ofSeconds(1);
+    private static final int PLATFORM_POOL_SIZE = 1_000;
+    private static final Duration PLATFORM_POOL_BUDGET = Duration.ofSeconds(20);
+
+    private static final int WRITERS = 20;
+    private static final int WRITES_PER_WRITER = 5;
+    private static final Duration WRITE_LATENCY = Duration.ofMillis(10);
+    private static final Duration HEARTBEAT_INTERVAL = Duration.ofMillis(5);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
+
+        log.info("=== Virtual Thread Scaling ===");
+        log.info("Each task blocks for %s. The platform thread pool has %,d threads. Available processors: %d".formatted(
+                BLOCK_TIME, PLATFORM_POOL_SIZE, Runtime.getRuntime().availableProcessors()));
+        if (!ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:+AlwaysPreTouch")) {
+            log.info("The heap isn't pre-touched (-XX:+AlwaysPreTouch), so 'RSS/thread' includes heap growth and is noisy.");
+        }
+        scaling();
+
+        log.info("");
+        log.info("=== Pinning ===");
+        pinning();
+    }
+
+    enum Workload {
+        SLEEP("sleep"),
+        AWAIT("await");
+
+        final String label;
+
+        Workload(String label) {
+            this.label = label;
+        }
+    }
+
+    private static void scaling() throws InterruptedException {
+        var results = new ArrayList<String>();
+        try (ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor()) {
+            for (Workload workload : Workload.values()) {
+                for (int tasks : TASK_COUNTS) {
+                    for (boolean virtual : new boolean[]{false, true}) {
+                        String executorLabel = virtual ? "virtual" : "platform pool";
+                        Duration projected = BLOCK_TIME.multipliedBy((tasks + PLATFORM_POOL_SIZE - 1) / PLATFORM_POOL_SIZE);
+                        if (!virtual && projected.compareTo(PLATFORM_POOL_BUDGET) > 0) {
+                            results.add("%-5s | %-13s | %,9d | skipped: projected to take %s".formatted(
+                                    workload.label, executorLabel, tasks, projected));
+                            continue;
+                        }
+                        log.info("Running %,d '%s' tasks on %s threads...".formatted(tasks, workload.label, executorLabel));
+                        ScalingResult result = runScaling(workload, tasks, virtual, responder);
+                        results.add("%-5s | %-13s | %,9d | %11.2fs | %,9d | %,11.0f | %,10.0f | %9.2fs | %,10.0f".formatted(
+                                workload.label, executorLabel, tasks, result.startNanos() / 1e9, result.blocked(),
+                                (double) result.heapBytes() / result.blocked(),
+                                (double) result.residentBytes() / result.blocked(), result.runNanos() / 1e9,
+                                tasks / (result.runNanos() / 1e9)));
+                    }
+                }
+            }
+        }
+
+        log.info("");
+        log.info("%-5s | %-13s | %9s | %12s | %9s | %11s | %10s | %10s | %10s".formatted("task", "executor", "tasks",
+                "start time", "blocked", "heap/thread", "RSS/thread", "run time", "tasks/s"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("'start time' is how long it took until every thread the executor could run was blocked at the gate.");
+        log.info("'heap/thread' and 'RSS/thread' are the growth in used heap and in resident memory divided by the");
+        log.info("number of blocked threads. A virtual thread's stack is on the heap while it's blocked. A platform");
+        log.info("thread's stack is outside the heap, so only RSS includes it. With only the pool's threads blocked, a");
+        log.info("few MB of heap noise is enough to make the pool's 'heap/thread' negative.");
+        log.info("'run time' and 'tasks/s' are from opening the gate to the last task finishing.");
+    }
+
+    record ScalingResult(long startNanos, long runNanos, int blocked, long heapBytes, long residentBytes) {}
+
+    private static ScalingResult runScaling(Workload workload, int tasks, boolean virtual,
+                                            ScheduledExecutorService responder) throws InterruptedException {
+        var blocked = new AtomicInteger();
+        var gate = new CountDownLatch(1);
+        Runnable task = () -> {
+            blocked.incrementAndGet();
+            try {
+                gate.await();
+                switch (workload) {
+                    case SLEEP -> Thread.sleep(BLOCK_TIME);
+                    case AWAIT -> {
+                        var response = new CompletableFuture<Void>();
+                        responder.schedule(() -> response.complete(null), BLOCK_TIME.toNanos(), TimeUnit.NANOSECONDS);
+                        response.join();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        long heapBefore = usedHeapAfterGc();
+        long residentBefore = residentBytes();
+        int expectedBlocked = virtual ? tasks : Math.min(tasks, PLATFORM_POOL_SIZE);
+        long start = System.nanoTime();
+        long startNanos;
+        long heapBytes;
+        long residentBytes;
+        long runStart;
+        try (ExecutorService executor = virtual
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(PLATFORM_POOL_SIZE)) {
+            for (int i = 0; i < tasks; i++) {
+                executor.execute(task);
+            }
+            while (blocked.get() < expectedBlocked) {
+                Thread.sleep(1);
+            }
+            startNanos = System.nanoTime() - start;
+            heapBytes = usedHeapAfterGc() - heapBefore;
+            residentBytes = residentBytes() - residentBefore;
+            runStart = System.nanoTime();
+            gate.countDown();
+        }
+        long runNanos = System.nanoTime() - runStart;
+        return new ScalingResult(startNanos, runNanos, expectedBlocked, heapBytes, residentBytes);
+    }
+
+    private static long usedHeapAfterGc() {
+        // A single GC doesn't always reclaim everything left over from the previous run, so collect twice.
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The process's resident set size, from {@code /proc/self/status} on Linux, or 0 where that isn't available.
+     */
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux.
+        }
+        return 0;
+    }
+
+    private static void pinning() throws InterruptedException {
+        log.info("%d virtual threads each make %d writes of %dms. Virtual thread scheduler parallelism: %s".formatted(
+                WRITERS, WRITES_PER_WRITER, WRITE_LATENCY.toMillis(),
+                System.getProperty("jdk.virtualThreadScheduler.parallelism",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))));
+
+        var results = new ArrayList<String>();
+        for (Database database : new Database[]{new SimulatedDatabase(WRITE_LATENCY), new LockDatabase(WRITE_LATENCY)}) {
+            var pinnedEvents = new AtomicLong();
+            var pinnedNanos = new AtomicLong();
+            var firstPinnedStack = new CopyOnWriteArrayList<String>();
+            long wallNanos;
+            long maxHeartbeatLateness;
+            try (var recording = new RecordingStream()) {
+                recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+                recording.onEvent("jdk.VirtualThreadPinned", event -> {
+                    pinnedEvents.incrementAndGet();
+                    pinnedNanos.addAndGet(event.getDuration().toNanos());
+                    if (firstPinnedStack.isEmpty()) {
+                        firstPinnedStack.addAll(topFrames(event, 6));
+                    }
+                });
+                recording.startAsync();
+
+                var heartbeat = new Heartbeat(HEARTBEAT_INTERVAL);
+                long start = System.nanoTime();
+                try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    for (int w = 0; w < WRITERS; w++) {
+                        int writer = w;
+                        executor.execute(() -> {
+                            try {
+                                for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                                    database.write(List.of("writer-%d record-%d".formatted(writer, i)));
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        });
+                    }
+                }
+                wallNanos = System.nanoTime() - start;
+                maxHeartbeatLateness = heartbeat.stop();
+                recording.stop();
+            }
+
+            if (database.totalRecordsWritten() != WRITERS * WRITES_PER_WRITER) {
+                throw new IllegalStateException("Expected %d records to be written but there were %d".formatted(
+                        WRITERS * WRITES_PER_WRITER, database.totalRecordsWritten()));
+            }
+            results.add("%-18s | %9.2fs | %,13d | %11.2fs | %20.1fms".formatted(database.label(), wallNanos / 1e9,
+                    pinnedEvents.get(), pinnedNanos.get() / 1e9, maxHeartbeatLateness / 1e6));
+            if (!firstPinnedStack.isEmpty()) {
+                log.info("First jdk.VirtualThreadPinned event with %s, top frames:".formatted(database.label()));
+                for (String frame : firstPinnedStack) {
+                    log.info("    at " + frame);
+                }
+            }
+        }
+
+        log.info("");
+        log.info("%-18s | %10s | %13s | %12s | %22s".formatted("database", "wall time", "pinned events", "pinned time",
+                "max heartbeat lateness"));
+        for (String result : results) {
+            log.info(result);
+        }
+        log.info("");
+        log.info("Both databases allow one write at a time, so the wall time is about the same. While a writer sleeps");
+        log.info("inside 'synchronized', it pins its carrier, so with few carriers other virtual threads (like the");
+        log.info("heartbeat) can't run.");
+    }
+
+    private static List<String> topFrames(RecordedEvent event, int count) {
+        var frames = new ArrayList<String>();
+        if (event.getStackTrace() == null) {
+            return frames;
+        }
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            if (frames.size() == count) {
+                break;
+            }
+            frames.add("%s.%s(line %d)".formatted(frame.getMethod().getType().getName(), frame.getMethod().getName(),
+                    frame.getLineNumber()));
+        }
+        return frames;
+    }
+
+    interface Database {
+        String label();
+
+        void write(List<String> records) throws InterruptedException;
+
+        int totalRecordsWritten();
+    }
+
+    /**
+     * The simulated database from {@code buffering-channels}, without its logging. The whole write, including the
+     * simulated network latency, happens inside a {@code synchronized} method.
+     */
+    static class SimulatedDatabase implements Database {
+        private final Duration latency;
+        private int totalRecordsWritten = 0;
+
+        SimulatedDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public String label() {
+            return "synchronized";
+        }
+
+        @Override
+        public synchronized void write(List<String> records) throws InterruptedException {
+            Thread.sleep(latency);
+            totalRecordsWritten += records.size();
+        }
+
+        @Override
+        public synchronized int totalRecordsWritten() { return totalRecordsWritten; }
+    }
+
+    /**
+     * The same database, guarded by a {@link ReentrantLock}. A virtual thread that blocks while holding it unmounts
+     * from its carrier as usual.
+     */
+    static class LockDatabase implements Database {
+        private final Duration latency;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int totalRecordsWritten = 0;
+
+        LockDatabase(Duration latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public String label() {
+            return "ReentrantLock";
+        }
+
+        @Override
+        public void write(List<String> records) throws InterruptedException {
+            lock.lock();
+            try {
+                Thread.sleep(latency);
+                totalRecordsWritten += records.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int totalRecordsWritten() {
+            lock.lock();
+            try {
+                return totalRecordsWritten;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A virtual thread that sleeps for a fixed interval in a loop and keeps track of how much later than planned it
+     * woke up.
+     */
+    static class Heartbeat {
+        private final Thread thread;
+        private volatile boolean running = true;
+        private long maxLatenessNanos = 0;
+
+        Heartbeat(Duration interval) {
+            this.thread = Thread.ofVirtual().name("heartbeat").start(() -> {
+                while (running) {
+                    long planned = System.nanoTime() + interval.toNanos();
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long lateness = System.nanoTime() - planned;
+                    synchronized (this) {
+                        maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stop the heartbeat and return the most it was late, in nanoseconds.
+         */
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            synchronized (this) {
+                return maxLatenessNanos;
+            }
+        }
+    }
+}